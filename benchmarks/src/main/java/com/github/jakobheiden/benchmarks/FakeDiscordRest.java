@@ -0,0 +1,87 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.DiscordRest;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process stand-in for the Discord REST API. Every call completes after the configured latency
+ * and fails with the configured probability. The channel history is empty.
+ */
+public class FakeDiscordRest implements DiscordRest {
+
+    private static final long MESSAGE_ID_BASE = 1_300_000_000_000_000_000L;
+
+    private final Duration latency;
+    private final double errorRate;
+    private final SplittableRandom random = new SplittableRandom(7);
+    private final AtomicLong nextMessageId = new AtomicLong(MESSAGE_ID_BASE);
+    final LongAdder calls = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    private volatile ReactionListener reactionListener = (_, _, _) -> {
+    };
+
+    /**
+     * Told about each reaction the bot added, once the call succeeded.
+     */
+    interface ReactionListener {
+        void reactionAdded(long channelId, long messageId, String emoji);
+    }
+
+    public FakeDiscordRest(Duration latency, double errorRate) {
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    void setReactionListener(ReactionListener reactionListener) {
+        this.reactionListener = reactionListener;
+    }
+
+    @Override
+    public Mono<Long> createMessage(long channelId, String content) {
+        return respond(nextMessageId.getAndIncrement());
+    }
+
+    @Override
+    public Mono<Void> addReaction(long channelId, long messageId, String emoji) {
+        return respond(Boolean.TRUE)
+                .doOnNext(_ -> reactionListener.reactionAdded(channelId, messageId, emoji))
+                .then();
+    }
+
+    @Override
+    public Mono<Void> removeOwnReaction(long channelId, long messageId, String emoji) {
+        return respond(Boolean.TRUE).then();
+    }
+
+    @Override
+    public Flux<HistoryMessage> getMessagesAfter(long channelId, long afterMessageId) {
+        return Flux.empty();
+    }
+
+    @Override
+    public Flux<Long> getReactionUserIds(long channelId, long messageId, String emoji) {
+        return Flux.empty();
+    }
+
+    private <T> Mono<T> respond(T value) {
+        return Mono.delay(latency).flatMap(_ -> {
+            calls.increment();
+            boolean isError;
+            synchronized (random) {
+                isError = random.nextDouble() < errorRate;
+            }
+            if (isError) {
+                errors.increment();
+                return Mono.error(new IOException("Injected Discord error"));
+            }
+            return Mono.just(value);
+        });
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * OMDb stand-in on a loopback port. Answers every lookup with a synthetic title after the configured
+ * latency, or with HTTP 500 at the configured error rate.
+ */
+public class FakeOmdbServer implements AutoCloseable {
+
+    private static final Pattern IMDB_ID_PARAMETER = Pattern.compile("(?:^|&)i=(tt\\d+)");
+
+    private final HttpServer server;
+    private final Duration latency;
+    private final double errorRate;
+    private final SplittableRandom random = new SplittableRandom(11);
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    public FakeOmdbServer(Duration latency, double errorRate) throws IOException {
+        this.latency = latency;
+        this.errorRate = errorRate;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+        }
+
+        boolean isError;
+        synchronized (random) {
+            isError = random.nextDouble() < errorRate;
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        Matcher matcher = IMDB_ID_PARAMETER.matcher(query == null ? "" : query);
+        if (isError || !matcher.find()) {
+            errors.increment();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+
+        String imdbId = matcher.group(1);
+        byte[] body = ("{\"Response\":\"True\",\"Title\":\"Synthetic Movie " + imdbId + "\",\"Year\":\"2000\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.MovieRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
+
+/**
+ * Builds synthetic movie databases for the benchmarks. Fixtures are deterministic and cached in the
+ * temp directory, so every fork of a benchmark reuses the same file. Benchmarks open a {@link #copy}
+ * of it, since likes and migrations would otherwise change the cached fixture for later runs.
+ */
+public final class FixtureGenerator {
+
+    public static final int USER_COUNT = 40;
+    private static final int MAX_LIKES_PER_MOVIE = 12;
+    private static final double WATCHED_RATIO = 0.2;
+    private static final int EXTRA_MESSAGES_PER_MOVIE = 2;
+    private static final long USER_ID_BASE = 200_000_000_000_000_000L;
+    private static final long MESSAGE_ID_BASE = 1_100_000_000_000_000_000L;
+    // likes spread over the last year, for the recency part of ranked suggestions
+    private static final long LIKE_AGE_SECONDS = 365L * 24 * 60 * 60;
+
+    private FixtureGenerator() {
+    }
+
+    public static Path generate(int movieCount) throws Exception {
+        // the version in the name leaves behind fixtures that earlier runs changed in place
+        Path path = Path.of(System.getProperty("java.io.tmpdir"), "dienstag-fixture-v2-" + movieCount + ".db");
+        if (Files.exists(path)) return path;
+
+        Path partial = Path.of(path + ".partial");
+        Files.deleteIfExists(partial);
+        MovieRepository schemaOnly = new MovieRepository(partial.toString(), false);
+        schemaOnly.initSchema().block();
+        schemaOnly.close();
+
+        SplittableRandom random = new SplittableRandom(movieCount);
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + partial)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement movie = connection.prepareStatement("INSERT INTO movies (imdb_id, title, year, has_been_watched) VALUES (?, ?, ?, ?)");
+                 PreparedStatement message = connection.prepareStatement("INSERT INTO messages (message_id, imdb_id) VALUES (?, ?)");
+                 PreparedStatement like = connection.prepareStatement("INSERT OR IGNORE INTO likes (imdb_id, user_id, liked_at) VALUES (?, ?, ?)")) {
+                long now = System.currentTimeMillis() / 1000;
+                long nextMessageId = MESSAGE_ID_BASE;
+                for (int i = 0; i < movieCount; i++) {
+                    String imdbId = imdbId(i);
+                    movie.setString(1, imdbId);
+                    movie.setString(2, "Synthetic Movie " + i);
+                    movie.setString(3, String.valueOf(1950 + random.nextInt(75)));
+                    movie.setInt(4, random.nextDouble() < WATCHED_RATIO ? 1 : 0);
+                    movie.addBatch();
+
+                    int messageCount = 1 + random.nextInt(EXTRA_MESSAGES_PER_MOVIE + 1);
+                    for (int j = 0; j < messageCount; j++) {
+                        message.setLong(1, nextMessageId++);
+                        message.setString(2, imdbId);
+                        message.addBatch();
+                    }
+
+                    // squaring skews the like counts towards few likes per movie, like in a real channel
+                    int likeCount = (int) (Math.pow(random.nextDouble(), 2) * MAX_LIKES_PER_MOVIE) + 1;
+                    for (int j = 0; j < likeCount; j++) {
+                        like.setString(1, imdbId);
+                        like.setLong(2, userId(random.nextInt(USER_COUNT)));
+                        like.setLong(3, now - random.nextLong(LIKE_AGE_SECONDS));
+                        like.addBatch();
+                    }
+                }
+                movie.executeBatch();
+                message.executeBatch();
+                like.executeBatch();
+            }
+            connection.commit();
+        }
+
+        Files.move(partial, path);
+        return path;
+    }
+
+    /**
+     * @return a private copy of the fixture for one trial; {@link #delete} it in the teardown
+     */
+    public static Path copy(int movieCount) throws Exception {
+        Path copy = Files.createTempFile("dienstag-trial-" + movieCount + "-", ".db");
+        Files.copy(generate(movieCount), copy, StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    public static void delete(Path database) throws IOException {
+        for (String suffix : List.of("", "-wal", "-shm")) {
+            Files.deleteIfExists(Path.of(database + suffix));
+        }
+    }
+
+    public static String imdbId(int movie) {
+        return "tt" + (1_000_000 + movie);
+    }
+
+    public static long userId(int user) {
+        return USER_ID_BASE + user;
+    }
+
+    public static List<Long> userIds(int count) {
+        return LongStream.range(0, count).map(user -> userId((int) user)).boxed().toList();
+    }
+
+    /**
+     * Every movie has at least one message, so ids from here up to {@code movieCount} are always movie messages.
+     */
+    public static long messageId(int index) {
+        return MESSAGE_ID_BASE + index;
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.EventRouter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImdbLinkBenchmark {
+
+    private static final Map<String, String> BODIES = Map.of(
+            "link", "Let's watch this one on Tuesday https://www.imdb.com/title/tt0111161/",
+            "localizedLink", "https://m.imdb.com/de/title/tt0068646/?ref_=ext_shr_lnk",
+            "noLink", "haha yes, but only if we get pizza this time",
+            "longNoLink", "I finally watched the thing everyone kept talking about. ".repeat(30),
+            "multipleLinks", """
+                    Three options for next week:
+                    https://www.imdb.com/title/tt0133093/
+                    https://www.imdb.com/title/tt0245429/
+                    https://www.imdb.com/title/tt1375666/""");
+
+    @Param({"link", "localizedLink", "noLink", "longNoLink", "multipleLinks"})
+    public String body;
+
+    private String content;
+
+    @Setup
+    public void setUp() {
+        content = BODIES.get(body);
+    }
+
+    @Benchmark
+    public List<String> extractImdbIds() {
+        return EventRouter.extractImdbIds(content);
+    }
+}
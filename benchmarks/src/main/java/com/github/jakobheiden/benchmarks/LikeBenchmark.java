@@ -0,0 +1,73 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.MovieRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LikeBenchmark {
+
+    private static final int BATCH_SIZE = 64;
+
+    @Param({"10000"})
+    public int movieCount;
+
+    private Path database;
+    private MovieRepository repository;
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = FixtureGenerator.copy(movieCount);
+        repository = new MovieRepository(database.toString(), false);
+        repository.initSchema().block();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repository.close();
+        FixtureGenerator.delete(database);
+    }
+
+    /**
+     * What a reaction handler pays: enqueueing into the journal and updating the suggestion engine.
+     */
+    @Benchmark
+    @Threads(4)
+    public void likeThenUnlike(ThreadRandom threadRandom) {
+        String imdbId = FixtureGenerator.imdbId(threadRandom.random.nextInt(movieCount));
+        long userId = FixtureGenerator.userId(threadRandom.random.nextInt(FixtureGenerator.USER_COUNT));
+        repository.persistLike(userId, imdbId);
+        repository.deleteLike(imdbId, userId);
+    }
+
+    /**
+     * Durable throughput: a burst of likes and unlikes written in one transaction.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void persistAndFlushBatch(ThreadRandom threadRandom) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String imdbId = FixtureGenerator.imdbId(threadRandom.random.nextInt(movieCount));
+            long userId = FixtureGenerator.userId(threadRandom.random.nextInt(FixtureGenerator.USER_COUNT));
+            if (threadRandom.random.nextBoolean()) {
+                repository.persistLike(userId, imdbId);
+            } else {
+                repository.deleteLike(imdbId, userId);
+            }
+        }
+        repository.flushLikes().block();
+    }
+}
@@ -0,0 +1,197 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.Command;
+import com.github.jakobheiden.DiscordOutbox;
+import com.github.jakobheiden.EventRouter;
+import com.github.jakobheiden.LatencyHistogram;
+import com.github.jakobheiden.Metrics;
+import com.github.jakobheiden.MovieChannel;
+import com.github.jakobheiden.MovieRepository;
+import com.github.jakobheiden.OmdbClient;
+import reactor.core.publisher.Flux;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the command handlers with synthetic traffic: messages with IMDb links, bursts of 👍 and
+ * suggestion requests, spread over several channels, against {@link FakeDiscordRest} and
+ * {@link FakeOmdbServer}. Reports throughput and per-command latency from the handler histograms.
+ * <p>
+ * Run with {@code java -cp target/benchmarks.jar com.github.jakobheiden.benchmarks.LoadHarness [key=value ...]};
+ * see {@link #DEFAULTS} for the keys.
+ */
+public class LoadHarness {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("channels", "2");
+        DEFAULTS.put("rate", "200");
+        DEFAULTS.put("seconds", "30");
+        DEFAULTS.put("movies", "500");
+        DEFAULTS.put("users", "40");
+        DEFAULTS.put("linkShare", "0.1");
+        DEFAULTS.put("maxLinksPerMessage", "3");
+        DEFAULTS.put("suggestShare", "0.02");
+        DEFAULTS.put("reactionBurst", "5");
+        DEFAULTS.put("discordLatencyMillis", "50");
+        DEFAULTS.put("discordErrorRate", "0.01");
+        DEFAULTS.put("omdbLatencyMillis", "100");
+        DEFAULTS.put("omdbErrorRate", "0.02");
+        DEFAULTS.put("drainTimeoutSeconds", "120");
+    }
+
+    private static final List<String> COMMAND_NAMES = List.of("add_movies", "suggest_movies", "like", "unlike");
+    private static final long CHANNEL_ID_BASE = 1_400_000_000_000_000_000L;
+    private static final long USER_ID_BASE = 200_000_000_000_000_000L;
+    private static final long MESSAGE_ID_BASE = 1_500_000_000_000_000_000L;
+
+    private final Map<String, String> options;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final AtomicLong nextMessageId = new AtomicLong(MESSAGE_ID_BASE);
+    private final Map<Long, MovieChannel> channels = new LinkedHashMap<>();
+    // only movies the bot confirmed with 👍, so reactions never arrive for a movie that isn't stored yet
+    private final Map<Long, List<String>> postedMovies = new HashMap<>();
+    private long dispatched;
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2 || !DEFAULTS.containsKey(keyValue[0])) {
+                System.err.println("Unknown option " + arg + ", expected one of " + DEFAULTS.keySet());
+                System.exit(1);
+            }
+            options.put(keyValue[0], keyValue[1]);
+        }
+        new LoadHarness(options).run();
+        System.exit(0);
+    }
+
+    private int intOption(String key) {
+        return Integer.parseInt(options.get(key));
+    }
+
+    private double doubleOption(String key) {
+        return Double.parseDouble(options.get(key));
+    }
+
+    private void run() throws Exception {
+        IO.println("Load harness: " + options);
+        Path directory = Files.createTempDirectory("dienstag-harness");
+        FakeDiscordRest rest = new FakeDiscordRest(Duration.ofMillis(intOption("discordLatencyMillis")), doubleOption("discordErrorRate"));
+        DiscordOutbox outbox = new DiscordOutbox(rest);
+        Map<Long, MovieRepository> repositories = new HashMap<>();
+
+        try (FakeOmdbServer omdb = new FakeOmdbServer(Duration.ofMillis(intOption("omdbLatencyMillis")), doubleOption("omdbErrorRate"))) {
+            OmdbClient omdbClient = new OmdbClient("harness", omdb.baseUrl());
+            for (int i = 0; i < intOption("channels"); i++) {
+                long channelId = CHANNEL_ID_BASE + i;
+                MovieRepository repository = new MovieRepository(directory.resolve("movies-" + channelId + ".db").toString(), false);
+                repository.initSchema().block();
+                repositories.put(channelId, repository);
+                channels.put(channelId, new MovieChannel(channelId, USER_ID_BASE, repository, omdbClient, rest, outbox));
+                postedMovies.put(channelId, new CopyOnWriteArrayList<>());
+            }
+            rest.setReactionListener((channelId, messageId, emoji) -> {
+                if (!emoji.equals("👍")) return;
+                // the bot confirms a link message once its movies are stored, and only those movies are
+                postedMovies.get(channelId).addAll(repositories.get(channelId).fetchImdbIdsFromMessageId(messageId));
+            });
+
+            long eventCount = (long) intOption("rate") * intOption("seconds");
+            Duration period = Duration.ofNanos(1_000_000_000L / intOption("rate"));
+            long start = System.nanoTime();
+            Flux.interval(period)
+                    .take(eventCount)
+                    .doOnNext(_ -> emitEvent())
+                    .blockLast();
+            long generatedAt = System.nanoTime();
+            IO.println(String.format("Load harness: generated %d events in %.1f s", eventCount, (generatedAt - start) / 1e9));
+
+            long deadline = generatedAt + Duration.ofSeconds(intOption("drainTimeoutSeconds")).toNanos();
+            while (handled() < dispatched && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            long elapsedNanos = System.nanoTime() - start;
+
+            report(elapsedNanos);
+            IO.println(String.format("Fake Discord: %d calls, %d errors; fake OMDb: %d requests, %d errors",
+                    rest.calls.sum(), rest.errors.sum(), omdb.requests.sum(), omdb.errors.sum()));
+        } finally {
+            repositories.values().forEach(MovieRepository::close);
+        }
+    }
+
+    /**
+     * One synthetic gateway event in a random channel: a link, a burst of reactions on a posted movie,
+     * or a suggestion request.
+     */
+    private void emitEvent() {
+        List<Long> channelIds = List.copyOf(channels.keySet());
+        long channelId = channelIds.get(random.nextInt(channelIds.size()));
+        List<String> movies = postedMovies.get(channelId);
+
+        double roll = random.nextDouble();
+        if (movies.isEmpty() || roll < doubleOption("linkShare")) {
+            StringBuilder content = new StringBuilder("How about these?");
+            for (int i = 1 + random.nextInt(intOption("maxLinksPerMessage")); i > 0; i--) {
+                content.append(" https://www.imdb.com/title/").append(FixtureGenerator.imdbId(random.nextInt(intOption("movies")))).append('/');
+            }
+            List<String> imdbIds = EventRouter.extractImdbIds(content.toString());
+            dispatch(new Command.AddMovies(channelId, nextMessageId.getAndIncrement(), randomUser(), imdbIds));
+        } else if (roll < doubleOption("linkShare") + doubleOption("suggestShare")) {
+            dispatch(new Command.SuggestMovies(channelId, List.of(randomUser(), randomUser(), randomUser()), false));
+        } else {
+            String imdbId = movies.get(random.nextInt(movies.size()));
+            for (int i = 0; i < intOption("reactionBurst"); i++) {
+                long userId = randomUser();
+                dispatch(random.nextDouble() < 0.8
+                        ? new Command.Like(channelId, userId, imdbId)
+                        : new Command.Unlike(channelId, userId, imdbId));
+            }
+        }
+    }
+
+    private long randomUser() {
+        return USER_ID_BASE + random.nextInt(intOption("users"));
+    }
+
+    private void dispatch(Command command) {
+        dispatched++;
+        channels.get(command.channelId()).dispatch(command);
+    }
+
+    private static LatencyHistogram handlerLatency(String command) {
+        return Metrics.latency("dienstag_handler_seconds", "", "command", command);
+    }
+
+    private static long handled() {
+        return COMMAND_NAMES.stream().mapToLong(command -> handlerLatency(command).count()).sum();
+    }
+
+    private void report(long elapsedNanos) {
+        long handled = handled();
+        IO.println(String.format("Load harness: %d of %d commands handled in %.1f s, %.0f commands/s",
+                handled, dispatched, elapsedNanos / 1e9, handled / (elapsedNanos / 1e9)));
+        IO.println(String.format("%-16s %10s %10s %10s %10s", "command", "count", "p50 ms", "p99 ms", "max ms"));
+        for (String command : COMMAND_NAMES) {
+            LatencyHistogram histogram = handlerLatency(command);
+            IO.println(String.format("%-16s %10d %10.2f %10.2f %10.2f", command, histogram.count(),
+                    histogram.quantileNanos(0.5) / 1e6, histogram.quantileNanos(0.99) / 1e6, histogram.maxNanos() / 1e6));
+        }
+    }
+}
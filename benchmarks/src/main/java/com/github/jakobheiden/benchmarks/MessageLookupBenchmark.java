@@ -0,0 +1,55 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.MovieRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageLookupBenchmark {
+
+    @Param({"10000", "100000"})
+    public int movieCount;
+
+    private Path database;
+    private MovieRepository repository;
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = FixtureGenerator.copy(movieCount);
+        repository = new MovieRepository(database.toString(), false);
+        repository.initSchema().block();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repository.close();
+        FixtureGenerator.delete(database);
+    }
+
+    @Benchmark
+    public List<String> movieMessage(ThreadRandom threadRandom) {
+        return repository.fetchImdbIdsFromMessageId(FixtureGenerator.messageId(threadRandom.random.nextInt(movieCount)));
+    }
+
+    /**
+     * Most reactions in the channel are on messages that aren't movie messages.
+     */
+    @Benchmark
+    public List<String> unrelatedMessage(ThreadRandom threadRandom) {
+        return repository.fetchImdbIdsFromMessageId(threadRandom.random.nextLong(1, FixtureGenerator.messageId(0)));
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.MovieRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int movieCount;
+
+    /**
+     * A narrow prefix, a year, and a word that every fixture title has.
+     */
+    @Param({"movie 12", "1984", "synthetic"})
+    public String text;
+
+    private Path database;
+    private MovieRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = FixtureGenerator.copy(movieCount);
+        repository = new MovieRepository(database.toString(), false);
+        repository.initSchema().block();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repository.close();
+        FixtureGenerator.delete(database);
+    }
+
+    @Benchmark
+    public List<MovieRepository.SearchResult> searchMovies() {
+        return repository.searchMovies(text).block();
+    }
+}
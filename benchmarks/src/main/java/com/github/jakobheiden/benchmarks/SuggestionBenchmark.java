@@ -0,0 +1,70 @@
+package com.github.jakobheiden.benchmarks;
+
+import com.github.jakobheiden.MovieRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SuggestionBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int movieCount;
+
+    @Param({"1", "3", "8"})
+    public int mentionCount;
+
+    @Param({"false", "true"})
+    public boolean useSqlSuggestions;
+
+    private Path database;
+    private MovieRepository repository;
+    private List<Long> mentionedUserIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = FixtureGenerator.copy(movieCount);
+        repository = new MovieRepository(database.toString(), useSqlSuggestions);
+        repository.initSchema().block();
+        mentionedUserIds = FixtureGenerator.userIds(mentionCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repository.close();
+        FixtureGenerator.delete(database);
+    }
+
+    /**
+     * The result cache is invalidated first, so the aggregation runs. That is one counter increment and writes
+     * nothing, so the SQL path doesn't also pay for a journal flush.
+     */
+    @Benchmark
+    public MovieRepository.MovieSuggestions fetchMovieSuggestions() {
+        repository.invalidateSuggestionCache();
+        return repository.fetchMovieSuggestions(mentionedUserIds).block();
+    }
+
+    /**
+     * Ranked suggestions aren't cached, so this is the scoring and top-k pass every time.
+     */
+    @Benchmark
+    public List<MovieRepository.RankedSuggestion> fetchRankedSuggestions() {
+        return repository.fetchRankedSuggestions(mentionedUserIds).block();
+    }
+
+    /**
+     * The same group asking again with nothing changed in between.
+     */
+    @Benchmark
+    public MovieRepository.MovieSuggestions fetchCachedMovieSuggestions() {
+        return repository.fetchMovieSuggestions(mentionedUserIds).block();
+    }
+}
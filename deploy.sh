@@ -1,8 +1,9 @@
 #!/bin/bash
 set -e
 
-mvn clean package -q
-scp -q target/Dienstag-1.0-SNAPSHOT.jar server:~/dienstag/
+mvn clean package -q -Paot
+# -p keeps the jar mtime, which the AOT cache is validated against
+scp -q -p target/Dienstag-1.0-SNAPSHOT.jar target/Dienstag.aot server:~/dienstag/
 scp -q dienstag.service server:/etc/systemd/system/
 ssh server 'systemctl daemon-reload && systemctl restart dienstag'
 
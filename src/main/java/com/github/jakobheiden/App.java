@@ -1,366 +1,389 @@
 package com.github.jakobheiden;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import discord4j.common.store.Store;
 import discord4j.common.util.Snowflake;
 import discord4j.core.DiscordClientBuilder;
 import discord4j.core.GatewayDiscordClient;
+import discord4j.core.event.domain.Event;
 import discord4j.core.event.domain.lifecycle.ReadyEvent;
-import discord4j.core.event.domain.message.*;
-import discord4j.core.object.emoji.Emoji;
-import discord4j.core.object.entity.Message;
-import discord4j.core.object.entity.User;
-import discord4j.core.object.entity.channel.MessageChannel;
 import discord4j.core.object.emoji.UnicodeEmoji;
-import discord4j.rest.http.client.ClientException;
-import io.netty.handler.codec.http.HttpResponseStatus;
+import discord4j.core.retriever.EntityRetrievalStrategy;
+import discord4j.core.shard.MemberRequestFilter;
+import discord4j.core.shard.ShardingStrategy;
+import discord4j.gateway.intent.Intent;
+import discord4j.gateway.intent.IntentSet;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Hooks;
 import reactor.core.publisher.Mono;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
 import java.sql.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.file.Path;
 import java.nio.file.Files;
 
 public class App {
 
-    private final long movieChannelId;
-    private final String ownerMention;
-    private final Snowflake botSnowflake;
-    private static final UnicodeEmoji eyesEmoji = UnicodeEmoji.of("\uD83D\uDC40");
-    private static final UnicodeEmoji thumbsUpEmoji = UnicodeEmoji.of("\uD83D\uDC4D");
-    private static final UnicodeEmoji resetEmoji = UnicodeEmoji.of("\uD83D\uDD04");
-    private static final String OMDB_API_URL_TEMPLATE = "https://www.omdbapi.com/?apikey=%s&i=%s";
-    private static final Pattern IMDB_ID_PATTERN = Pattern.compile("imdb\\.com/(?:[a-z]{2}/)?title/(tt\\d+)", Pattern.CASE_INSENSITIVE);
-
-    private final String omdbApiKey;
-    private final HttpClient httpClient = HttpClient.newHttpClient();
-    private final MovieRepository movieRepository;
-    private final GatewayDiscordClient discordClient;
+    static final UnicodeEmoji eyesEmoji = UnicodeEmoji.of("\uD83D\uDC40");
+    static final UnicodeEmoji thumbsUpEmoji = UnicodeEmoji.of("\uD83D\uDC4D");
+    static final UnicodeEmoji resetEmoji = UnicodeEmoji.of("\uD83D\uDD04");
+
+    private static final Duration LOGOUT_TIMEOUT = Duration.ofSeconds(5);
+    // a lane stuck on a call that never returns mustn't keep a removed channel's database open for good
+    private static final Duration CHANNEL_STOP_TIMEOUT = Duration.ofSeconds(30);
+    private static final Path SETTINGS_FILE = Path.of("settings.yaml");
+    private static final Path DATA_DIR = Path.of("data");
+    // message content is a privileged intent, which has to be enabled for the bot in the developer portal
+    private static final IntentSet GATEWAY_INTENTS = IntentSet.of(Intent.GUILD_MESSAGES, Intent.GUILD_MESSAGE_REACTIONS,
+            Intent.MESSAGE_CONTENT);
+
+    // replaced as a whole when reloaded settings add or remove channels, never modified in place
+    private volatile Map<Long, MovieChannel> movieChannels;
+    private volatile Map<Long, MovieRepository> repositories;
+    private final EventRouter eventRouter;
+    private final OmdbClient omdbClient;
+    private final Discord4jRest rest;
+    private final DiscordOutbox outbox;
+    private final SettingsReloader settingsReloader;
+    private final AtomicBoolean isReconnectRequested = new AtomicBoolean();
+    private volatile boolean isShuttingDown;
+    private volatile GatewayDiscordClient discordClient;
 
     static void main(String[] args) throws Exception {
-        new App();
+        if (args.length > 0 && args[0].equals("--training")) {
+            TrainingRun.run();
+            return;
+        }
+        try {
+            new App();
+        } catch (Exception e) {
+            // exits with a failure, so the service manager restarts the bot
+            Log.error("startup failed").with("error", e).log();
+            Log.flush();
+            System.exit(1);
+        }
     }
 
     public App() throws SQLException, IOException {
-        SettingsLoader settingsLoader = new SettingsLoader("settings.yaml");
-        String token = settingsLoader.getDiscordBotToken();
-        omdbApiKey = settingsLoader.getOmdbApiKey();
-        movieChannelId = settingsLoader.getMovieChannelId();
-        ownerMention = String.format("<@%d>", settingsLoader.getOwnerId());
-        botSnowflake = Snowflake.of(settingsLoader.getBotId());
-
-        Path dataDir = Path.of("data");
-        if (!Files.exists(dataDir)) {
-            Files.createDirectories(dataDir);
+        long settingsStart = System.nanoTime();
+        SettingsLoader settingsLoader = SettingsLoader.loadOrExit(SETTINGS_FILE.toString());
+        Log.setLevel(settingsLoader.getLogLevel());
+        omdbClient = new OmdbClient(settingsLoader.getOmdbApiKey());
+        List<SettingsLoader.MovieChannelSettings> channelSettings = settingsLoader.getMovieChannels();
+        logStartupPhase("settings", settingsStart);
+
+        registerHeapGauges();
+        if (settingsLoader.getMetricsPort() != 0) {
+            MetricsServer.start((int) settingsLoader.getMetricsPort());
         }
 
-        movieRepository = new MovieRepository();
-        movieRepository.initSchema();
-
-        discordClient = DiscordClientBuilder.create(token)
-                .build()
-                .login()
-                .block();
+        long openDatabaseStart = System.nanoTime();
+        if (!Files.exists(DATA_DIR)) {
+            Files.createDirectories(DATA_DIR);
+        }
+        Map<Long, MovieRepository> openedRepositories = new LinkedHashMap<>();
+        for (SettingsLoader.MovieChannelSettings channel : channelSettings) {
+            Path databasePath = databasePath(DATA_DIR, channel.channelId(), openedRepositories.isEmpty());
+            openedRepositories.put(channel.channelId(), new MovieRepository(databasePath.toString(), settingsLoader.isUseSqlSuggestions()));
+        }
+        repositories = openedRepositories;
+        logStartupPhase("open databases", openDatabaseStart);
+
+        // migrations and index warm-up run while the gateway logs in
+        Mono<Void> databasesReady = timedStartupPhase("schema and in-memory indexes", Flux.fromIterable(openedRepositories.values())
+                .flatMap(MovieRepository::initSchema)
+                .then())
+                .cache();
+        databasesReady.subscribe(null, _ -> {
+        });
+        eventRouter = new EventRouter(openedRepositories, Snowflake.of(settingsLoader.getBotId()));
+
+        discordClient = timedStartupPhase("gateway login", login(settingsLoader.getDiscordBotToken())).block();
+        // shutdown hooks run concurrently, so one hook stops the events before the databases close
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            isShuttingDown = true;
+            // no reload may open or close channels while they shut down
+            closeSettingsReloader();
+            discordClient.logout().block(LOGOUT_TIMEOUT);
+            repositories.values().forEach(MovieRepository::close);
+            Log.flush();
+        }));
+        databasesReady.block();
+        rest = new Discord4jRest(discordClient.getRestClient());
+        outbox = new DiscordOutbox(rest);
+        Map<Long, MovieChannel> channels = new LinkedHashMap<>();
+        for (SettingsLoader.MovieChannelSettings channel : channelSettings) {
+            channels.put(channel.channelId(), newMovieChannel(channel, openedRepositories.get(channel.channelId()), settingsLoader));
+        }
+        movieChannels = channels;
         Hooks.onErrorDropped(this::handleException);
         configureEventHandlers();
-        discordClient.onDisconnect().block();
-    }
-
-    private void configureEventHandlers() {
-        // on login
-        discordClient.getEventDispatcher().on(ReadyEvent.class)
-                .subscribe(event -> {
-                    IO.println("Bot logged in as " + event.getSelf().getUsername());
-                });
-
-        // persist a movie
-        discordClient.getEventDispatcher().on(MessageCreateEvent.class)
-                .filter(this::isInFilmeChannel)
-                .filter(App::isImdbLink)
-                .flatMap(event -> Mono.fromCallable(() -> {
-                    addMovie(event);
-                    return null;
-                }))
-                .subscribe(null, this::handleException);
-
-        // suggest movies
-        discordClient.getEventDispatcher().on(MessageCreateEvent.class)
-                .filter(this::isInFilmeChannel)
-                .filter(this::hasBotMention)
-                .flatMap(event -> Mono.fromCallable(() -> {
-                    suggestMovies(event);
-                    return null;
-                }))
-                .subscribe(null, this::handleException);
-
-        // leave a like
-        discordClient.getEventDispatcher().on(ReactionAddEvent.class)
-                .filter(this::isReactionInMovieChannel)
-                .filter(event -> !event.getMember().get().isBot())
-                .filter(App::isThumbsUp)
-                .flatMap(event -> Mono.fromCallable(() -> fetchUserIdAndImdbId(event))
-                        .flatMap(Mono::justOrEmpty))
-                .flatMap(userIdAndImdbId ->
-                    Mono.fromCallable(() -> {
-                        handleLikeReaction(userIdAndImdbId.userId, userIdAndImdbId.imdbId);
-                        return null;
-                    })
-                )
-                .subscribe(null, this::handleException);
-
-        // remove a like
-        discordClient.getEventDispatcher().on(ReactionRemoveEvent.class)
-                .filter(this::isReactionInMovieChannel)
-                .filter(App::isThumbsUp)
-                .flatMap(event -> Mono.fromCallable(() -> {
-                    handleUnlikeReaction(event);
-                    return null;
-                }))
-                .subscribe(null, this::handleException);
-
-        // mark as seen
-        discordClient.getEventDispatcher().on(ReactionAddEvent.class)
-                .filter(this::isReactionInMovieChannel)
-                .filter(App::isEyesEmoji)
-                .flatMap(event ->
-                    Mono.fromCallable(() -> movieRepository.fetchImdbIdFromMessageId(event.getMessageId().asString()))
-                        .flatMap(Mono::justOrEmpty)
-                )
-                .flatMap(imdbId ->
-                    Mono.fromCallable(() -> {
-                        handleMarkMovieAsSeenReaction(imdbId);
-                        return null;
-                    })
-                )
-                .subscribe(null, this::handleException);
-
-        // mark as not seen
-        discordClient.getEventDispatcher().on(ReactionAddEvent.class)
-                .filter(this::isReactionInMovieChannel)
-                .filter(App::isResetEmoji)
-                .flatMap(event ->
-                    Mono.fromCallable(() -> movieRepository.fetchImdbIdFromMessageId(event.getMessageId().asString()))
-                        .flatMap(Mono::justOrEmpty)
-                )
-                .flatMap(imdbId ->
-                    Mono.fromCallable(() -> {
-                        handleMarkMovieAsNotSeenReaction(imdbId);
-                        return null;
-                    })
-                )
-                .subscribe(null, this::handleException);
-    }
-
-    private record UserIdAndImdbId(String userId, String imdbId) {
-    }
-
-    private Optional<UserIdAndImdbId> fetchUserIdAndImdbId(ReactionAddEvent event) throws SQLException {
-        String imdbId = movieRepository.fetchImdbIdFromMessageId(event.getMessageId().asString())
-                .orElse(null);
-        if (imdbId == null) return Optional.empty();
-        return Optional.of(new UserIdAndImdbId(event.getUserId().asString(), imdbId));
-    }
-
-    private static boolean isImdbLink(MessageCreateEvent event) {
-        return IMDB_ID_PATTERN.matcher(event.getMessage().getContent()).find();
-    }
-
-    private boolean hasBotMention(MessageCreateEvent event) {
-        return event.getMessage().getUserMentions().stream()
-                .map(User::getId)
-                .anyMatch(id -> id.equals(botSnowflake));
-    }
-
-    private boolean isInFilmeChannel(MessageCreateEvent event) {
-        return event.getMessage().getChannelId().asLong() == movieChannelId;
-    }
-
-    private static boolean isEyesEmoji(ReactionAddEvent event) {
-        return event.getEmoji().equals(eyesEmoji);
+        settingsReloader = new SettingsReloader(SETTINGS_FILE, settingsLoader, this::applySettings);
+        Log.info("startup: ready").with("since_jvm_start_ms", ManagementFactory.getRuntimeMXBean().getUptime())
+                .with("heap_used_bytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()).log();
+        // live events are already being handled, so nothing posted from here on is missed
+        movieChannels.values().forEach(MovieChannel::startCatchUp);
+        runUntilLogout();
+        // the logout of the shutdown hook ends up here too, and exiting from within a shutdown would hang
+        if (!isShuttingDown) {
+            Log.error("disconnected from the gateway for good").log();
+            Log.flush();
+            System.exit(1);
+        }
     }
 
-    private static boolean isResetEmoji(ReactionAddEvent event) {
-        return event.getEmoji().equals(resetEmoji);
+    /**
+     * The bot only reads messages and reactions in its channels, and everything it needs comes with the event
+     * payload or from its own database. So it asks for just those intents and caches no entities at all,
+     * where the defaults would cache every guild, member, message and presence it can see.
+     */
+    private static Mono<GatewayDiscordClient> login(String token) {
+        return DiscordClientBuilder.create(token)
+                .build()
+                .gateway()
+                .setSharding(ShardingStrategy.recommended())
+                .setEnabledIntents(GATEWAY_INTENTS)
+                .setStore(Store.noOp())
+                .setMemberRequestFilter(MemberRequestFilter.none())
+                // anything the events don't carry is looked up on demand, which the bot doesn't do today
+                .setEntityRetrievalStrategy(EntityRetrievalStrategy.REST)
+                .login();
     }
 
-    private static boolean isThumbsUp(ReactionBaseEmojiEvent event) {
-        Emoji emoji = event.getEmoji();
-        if (emoji instanceof UnicodeEmoji unicodeEmoji) {
-            String raw = unicodeEmoji.getRaw();
-            // Match 👍 and all skin tone variants
-            return raw.startsWith("👍");
+    /**
+     * Blocks while the bot is connected. A changed bot token logs out, which logs in again here with the new one.
+     */
+    private void runUntilLogout() {
+        while (true) {
+            discordClient.onDisconnect().block();
+            if (!isReconnectRequested.getAndSet(false)) return;
+
+            discordClient = timedStartupPhase("gateway login", login(settingsReloader.get().getDiscordBotToken())).block();
+            rest.setRestClient(discordClient.getRestClient());
+            configureEventHandlers();
+            // events sent while logged out are read from the channel history
+            movieChannels.values().forEach(MovieChannel::startCatchUp);
         }
-        return false;
     }
 
-    private boolean isReactionInMovieChannel(ReactionEvent event) {
-        return event.getChannelId().asLong() == movieChannelId;
+    private MovieChannel newMovieChannel(SettingsLoader.MovieChannelSettings channel, MovieRepository repository,
+                                         SettingsLoader settings) {
+        MovieChannel movieChannel = new MovieChannel(channel.channelId(), channel.ownerId(), repository, omdbClient, rest, outbox);
+        if (settings.getSnapshotIntervalMinutes() > 0) {
+            movieChannel.scheduleSnapshots(DATA_DIR.resolve("snapshots"), Duration.ofMinutes(settings.getSnapshotIntervalMinutes()),
+                    (int) settings.getSnapshotsToKeep());
+        }
+        return movieChannel;
     }
 
-    private String[] fetchMovieTitleAndYearFromOmdb(String imdbId) throws IOException, InterruptedException {
-        String url = String.format(OMDB_API_URL_TEMPLATE, omdbApiKey, imdbId);
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .GET()
-                .build();
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            throw new IOException("HTTP error: " + response.statusCode());
+    /**
+     * Applies reloaded settings while the bot keeps running. The OMDb key, owners, bot id, log level and movie
+     * channels change on the fly, and only a new bot token needs a new gateway login. Settings that are read
+     * once at startup are reported instead.
+     */
+    private void applySettings(SettingsLoader previous, SettingsLoader next) {
+        if (next.getLogLevel() != previous.getLogLevel()) {
+            Log.setLevel(next.getLogLevel());
+            Log.info("settings: log level changed").with("level", next.getLogLevel().name()).log();
         }
-
-        JsonObject json = JsonParser.parseString(response.body()).getAsJsonObject();
-        if (!json.has("Response") || !json.get("Response").getAsString().equals("True")) {
-            String jsonError = json.has("Error") ? json.get("Error").getAsString() : "Could not parse json from response";
-            String error = "OMDb API error: " + jsonError;
-            throw new RuntimeException(error);
+        if (!next.getOmdbApiKey().equals(previous.getOmdbApiKey())) {
+            omdbClient.setApiKey(next.getOmdbApiKey());
+            Log.info("settings: OMDb API key changed").log();
+        }
+        if (next.getBotId() != previous.getBotId()) {
+            eventRouter.setBotId(next.getBotId());
+            Log.info("settings: bot id changed").with("bot_id", next.getBotId()).log();
+        }
+        updateMovieChannels(next);
+        reportRestartRequired("useSqlSuggestions", previous.isUseSqlSuggestions(), next.isUseSqlSuggestions());
+        reportRestartRequired("metricsPort", previous.getMetricsPort(), next.getMetricsPort());
+        reportRestartRequired("snapshotIntervalMinutes", previous.getSnapshotIntervalMinutes(), next.getSnapshotIntervalMinutes());
+        reportRestartRequired("snapshotsToKeep", previous.getSnapshotsToKeep(), next.getSnapshotsToKeep());
+        if (!next.getDiscordBotToken().equals(previous.getDiscordBotToken())) {
+            Log.info("settings: bot token changed, logging in again").log();
+            isReconnectRequested.set(true);
+            discordClient.logout().subscribe(null, this::handleException);
         }
-
-        return new String[]{json.get("Title").getAsString(), json.get("Year").getAsString()};
     }
 
-    private static String extractImdbId(String message) {
-        Matcher matcher = IMDB_ID_PATTERN.matcher(message);
-        if (matcher.find()) {
-            return matcher.group(1);
+    private static void reportRestartRequired(String setting, Object previous, Object next) {
+        if (!previous.equals(next)) {
+            Log.warn("settings: changed setting takes effect after a restart").with("setting", setting)
+                    .with("value", String.valueOf(next)).log();
         }
-        return null;
     }
 
-    private void addMovie(MessageCreateEvent event) throws IOException, SQLException {
-        String messageContent = event.getMessage().getContent();
-        String messageId = event.getMessage().getId().asString();
-        String imdbId = extractImdbId(messageContent);
-        if (imdbId == null) {
-            throw new IOException("Failed to extract IMDB ID from message: " + messageId);
-        }
-        String[] titleAndYear;
+    private void closeSettingsReloader() {
+        // null while starting up
+        SettingsReloader reloader = settingsReloader;
+        if (reloader == null) return;
         try {
-            titleAndYear = fetchMovieTitleAndYearFromOmdb(imdbId);
-        } catch (Exception e) {
-            event.getMessage().getChannel().block().createMessage("Failed to extract title from OMDB API: " + e.getMessage() +
-                    "\nMovie not persisted in database.").subscribe();
-            return;
+            reloader.close();
+        } catch (IOException e) {
+            Log.warn("failed to stop watching the settings file").with("error", e).log();
         }
-        boolean isOldMovie = movieRepository.persistMovie(imdbId, titleAndYear[0], titleAndYear[1]);
-        movieRepository.persistMessage(messageId, imdbId);
-        String authorId = event.getMessage().getAuthor().get().getId().asString();
-        movieRepository.persistLike(authorId, imdbId);
-
-        if (isOldMovie) {
-            IO.println("Movie already in database: " + titleAndYear[0] + " (" + imdbId + ")");
-        } else {
-            IO.println("Successfully persisted movie: " + titleAndYear[0] + " (" + imdbId + ")");
-        }
-        event.getMessage().addReaction(thumbsUpEmoji).subscribe();
     }
 
-    private void suggestMovies(MessageCreateEvent event) throws SQLException {
-        List<String> mentionedUserIds = event.getMessage().getUserMentions()
-                .stream().filter(user -> !user.isBot())
-                .map(user -> user.getId().asString()).toList();
-
-        if (mentionedUserIds.isEmpty()) return;
-
-        MovieRepository.MovieSuggestions movieSuggestions = movieRepository.fetchMovieSuggestions(mentionedUserIds);
-
-        if (movieSuggestions.maxTaggedLikeCount() == 0) {
-            IO.println("No movies to suggest");
-            event.getMessage().getChannel().subscribe(messageChannel ->
-                    messageChannel.createMessage("No movies to suggest").subscribe());
+    /**
+     * Opens channels that were added, updates the owners of the others, and closes channels that were removed.
+     */
+    private void updateMovieChannels(SettingsLoader settings) {
+        Map<Long, MovieChannel> previousChannels = movieChannels;
+        Map<Long, MovieRepository> previousRepositories = repositories;
+        Map<Long, MovieChannel> channels = new LinkedHashMap<>();
+        Map<Long, MovieRepository> channelRepositories = new LinkedHashMap<>();
+        List<MovieChannel> addedChannels = new ArrayList<>();
+        for (SettingsLoader.MovieChannelSettings channel : settings.getMovieChannels()) {
+            MovieChannel movieChannel = previousChannels.get(channel.channelId());
+            MovieRepository repository = previousRepositories.get(channel.channelId());
+            if (movieChannel == null) {
+                repository = openRepository(channel.channelId(), settings);
+                if (repository == null) continue;
+                movieChannel = newMovieChannel(channel, repository, settings);
+                addedChannels.add(movieChannel);
+                Log.info("settings: added movie channel").with("channel", channel.channelId()).log();
+            }
+            movieChannel.setOwnerId(channel.ownerId());
+            channels.put(channel.channelId(), movieChannel);
+            channelRepositories.put(channel.channelId(), repository);
+        }
+        if (channels.isEmpty()) {
+            Log.error("settings: no movie channel could be opened, keeping the previous ones").log();
             return;
         }
 
-        IO.println(String.format("Suggesting %d titles", movieSuggestions.titles().size()));
-
-        MessageChannel channel = event.getMessage().getChannel().block();
-        for (int i = 0; i < movieSuggestions.titles().size(); i++) {
-            String imdbId = movieSuggestions.imdbIds().get(i);
-            String title = movieSuggestions.titles().get(i);
-            String year = movieSuggestions.years().get(i);
-            channel.createMessage(String.format("%d/%d %s%s", movieSuggestions.maxTaggedLikeCount(),
-                            movieSuggestions.allLikeCounts().get(i),
-                            title,
-                            year != null ? " (" + year + ")" : ""))
-                    .map(Message::getId)
-                    .map(Snowflake::asString)
-                    .flatMap(messageId ->
-                            Mono.fromCallable(() -> {
-                                movieRepository.persistMessage(messageId, imdbId);
-                                IO.println("Persisted movie message: " + messageId + " (" + imdbId + ")");
-                                return null;
-                            }))
+        movieChannels = channels;
+        repositories = channelRepositories;
+        eventRouter.setRepositories(channelRepositories);
+        addedChannels.forEach(MovieChannel::startCatchUp);
+        previousChannels.forEach((channelId, movieChannel) -> {
+            if (channels.containsKey(channelId)) return;
+            MovieRepository repository = previousRepositories.get(channelId);
+            // likes and marks already queued in the lanes still write to the repository
+            movieChannel.stop()
+                    .timeout(CHANNEL_STOP_TIMEOUT, Mono.fromRunnable(() -> Log.warn("settings: removed movie channel's work didn't finish in time")
+                            .with("channel", channelId).log()))
+                    .doFinally(_ -> {
+                        repository.close();
+                        Log.info("settings: removed movie channel").with("channel", channelId).log();
+                    })
                     .subscribe(null, this::handleException);
+        });
+    }
+
+    /**
+     * @return the ready repository of a newly added channel, or null if it couldn't be opened
+     */
+    private static MovieRepository openRepository(long channelId, SettingsLoader settings) {
+        MovieRepository repository = null;
+        try {
+            repository = new MovieRepository(databasePath(DATA_DIR, channelId, false).toString(), settings.isUseSqlSuggestions());
+            repository.initSchema().block();
+            return repository;
+        } catch (SQLException | IOException | RuntimeException e) {
+            Log.error("settings: could not open the database of a channel").with("channel", channelId).with("error", e).log();
+            if (repository != null) {
+                repository.close();
+            }
+            return null;
         }
-   }
+    }
 
-    private void handleLikeReaction(String userId, String imdbId) throws SQLException {
-        movieRepository.persistLike(userId, imdbId);
+    /**
+     * Each movie channel has its own database file. The data/movies.db of a single-channel setup is taken
+     * over by the first configured channel.
+     */
+    private static Path databasePath(Path dataDir, long channelId, boolean isFirstChannel) throws IOException {
+        Path databasePath = dataDir.resolve("movies-" + channelId + ".db");
+        Path legacyPath = dataDir.resolve("movies.db");
+        if (isFirstChannel && !Files.exists(databasePath) && Files.exists(legacyPath)) {
+            for (String suffix : List.of("", "-wal", "-shm")) {
+                Path legacyFile = Path.of(legacyPath + suffix);
+                if (Files.exists(legacyFile)) {
+                    Files.move(legacyFile, Path.of(databasePath + suffix));
+                }
+            }
+            Log.info("moved legacy database").with("from", legacyPath.toString()).with("to", databasePath.toString()).log();
+        }
+        return databasePath;
     }
 
-    private void handleUnlikeReaction(ReactionRemoveEvent event) throws SQLException {
-        String userId = event.getUserId().asString();
-        Optional<String> maybeImdbId = movieRepository.fetchImdbIdFromMessageId(event.getMessageId().asString());
-        if (maybeImdbId.isEmpty()) return;
+    /**
+     * Heap usage, to size the container: used is the live data plus garbage, committed is what the JVM holds.
+     */
+    private static void registerHeapGauges() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Metrics.gauge("dienstag_heap_bytes", "JVM heap usage", "area", "used", () -> memory.getHeapMemoryUsage().getUsed());
+        Metrics.gauge("dienstag_heap_bytes", "JVM heap usage", "area", "committed", () -> memory.getHeapMemoryUsage().getCommitted());
+        Metrics.gauge("dienstag_heap_bytes", "JVM heap usage", "area", "max", () -> memory.getHeapMemoryUsage().getMax());
+        Metrics.gauge("dienstag_non_heap_bytes", "JVM non-heap usage, such as metaspace and code cache", null, null,
+                () -> memory.getNonHeapMemoryUsage().getUsed());
+    }
 
-        movieRepository.deleteLike(maybeImdbId.get(), userId);
+    private static <T> Mono<T> timedStartupPhase(String phase, Mono<T> mono) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return mono.doOnTerminate(() -> logStartupPhase(phase, start));
+        });
     }
 
-    private void handleMarkMovieAsSeenReaction(String imdbId) throws SQLException {
-        boolean isAlreadyMarkedAsSeen = movieRepository.markMovieAsSeen(imdbId);
-        if (isAlreadyMarkedAsSeen) {
-            IO.println("Movie already marked as seen: " + imdbId);
-            return;
-        }
+    private static void logStartupPhase(String phase, long startNanos) {
+        Log.info("startup: phase finished").with("phase", phase).withMillisSince("latency_ms", startNanos).log();
+    }
 
-        IO.println("Movie marked as seen: " + imdbId);
+    private void configureEventHandlers() {
+        // on login, once per shard
+        discordClient.getEventDispatcher().on(ReadyEvent.class)
+                .subscribe(event -> {
+                    Log.info("bot logged in").with("username", event.getSelf().getUsername())
+                            .with("shard", event.getShardInfo().getIndex()).with("shards", event.getShardInfo().getCount()).log();
+                });
 
-        List<String> messageIds = movieRepository.fetchMessageIds(imdbId);
-        Flux.fromIterable(messageIds)
-                .map(Snowflake::of)
-                .flatMap(snowflake -> discordClient.getMessageById(Snowflake.of(movieChannelId), snowflake))
-                .flatMap(message -> message.addReaction(eyesEmoji))
-                .subscribe(null, this::handleException);
+        // everything else goes through the router, once per event
+        discordClient.getEventDispatcher().on(Event.class)
+                .subscribe(this::route, this::handleException);
     }
 
-    private void handleMarkMovieAsNotSeenReaction(String imdbId) throws SQLException {
-        boolean isAlreadyMarkedAsNotSeen = movieRepository.markMovieAsNotSeen(imdbId);
-        if (isAlreadyMarkedAsNotSeen) {
-            IO.println("Movie already marked as not seen: " + imdbId);
+    /**
+     * An error is reported and ends only the event or command it came from. Thrown into the subscription
+     * above, it would cancel it, and the bot would stay connected but ignore every later event.
+     */
+    private void route(Event event) {
+        List<Command> commands;
+        try {
+            commands = eventRouter.classify(event);
+        } catch (RuntimeException e) {
+            handleException(e);
             return;
         }
-
-        IO.println("Movie marked as not seen: " + imdbId);
-
-        List<String> messageIds = movieRepository.fetchMessageIds(imdbId);
-        Flux.fromIterable(messageIds)
-                .map(Snowflake::of)
-                .flatMap(snowflake -> discordClient.getMessageById(Snowflake.of(movieChannelId), snowflake))
-                .flatMap(message -> message.removeReaction(eyesEmoji, botSnowflake))
-                .subscribe(null, this::handleException);
+        for (Command command : commands) {
+            try {
+                dispatch(command);
+            } catch (RuntimeException e) {
+                handleException(e);
+            }
+        }
     }
 
-    public void handleException(Throwable throwable) {
-        String errorMessage = throwable.getMessage();
-        System.err.println(errorMessage);
-
-        if (throwable instanceof ClientException) {
-            if (((ClientException) throwable).getStatus().equals(HttpResponseStatus.NOT_FOUND))
-                return;
+    private void dispatch(Command command) {
+        // the channel may have been removed from the settings after the event was classified
+        MovieChannel movieChannel = movieChannels.get(command.channelId());
+        if (movieChannel != null) {
+            movieChannel.dispatch(command);
         }
+    }
 
-        discordClient.getChannelById(Snowflake.of(movieChannelId))
-                .ofType(MessageChannel.class)
-                .flatMap(channel -> channel.createMessage("⚠️ Error: " + errorMessage + " " + ownerMention))
-                .subscribe();
+    /**
+     * Errors that don't belong to a channel are reported in the first one.
+     */
+    public void handleException(Throwable throwable) {
+        movieChannels.values().iterator().next().handleException(throwable);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package com.github.jakobheiden;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Replays what happened in the movie channel while the bot was offline. The messages after the
+ * persisted high-water mark are streamed one page at a time; each page's IMDb links, 👍, 👀 and 🔄
+ * are diffed against the database and written in one transaction that also advances the mark.
+ * Runs next to live handling, and once it has finished, live messages advance the mark instead. The mark
+ * never passes a live message whose movies aren't stored yet, so a crash can't skip it.
+ */
+public class ChannelCatchUp {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int REACTION_FETCH_CONCURRENCY = 4;
+    private static final LatencyHistogram PAGE_LATENCY = Metrics.latency("dienstag_catch_up_page_seconds",
+            "Time to reconcile one page of channel history", null, null);
+
+    private static final class PageMovie {
+        final String imdbId;
+        final List<DiscordRest.HistoryMessage> messages = new ArrayList<>();
+        final List<Long> newMessageIds = new ArrayList<>();
+        final Set<Long> linkAuthorIds = new HashSet<>();
+        MovieMetadata metadata;
+
+        PageMovie(String imdbId) {
+            this.imdbId = imdbId;
+        }
+    }
+
+    private record Totals(int messages, int moviesAdded, int likesAdded, int likesRemoved) {
+    }
+
+    private final long channelId;
+    private final DiscordRest rest;
+    private final DiscordOutbox outbox;
+    private final MovieRepository movieRepository;
+    private final MovieMetadataCache metadataCache;
+    private final BiConsumer<String, Boolean> onWatchedChanged;
+    private final AtomicBoolean isCaughtUp = new AtomicBoolean();
+    private final AtomicBoolean isRunning = new AtomicBoolean();
+    private final AtomicBoolean isRerunRequested = new AtomicBoolean();
+    // live messages with links whose movies aren't stored yet
+    private final ConcurrentSkipListSet<Long> unfinishedMessageIds = new ConcurrentSkipListSet<>();
+    private final AtomicLong latestHandledMessageId = new AtomicLong();
+
+    /**
+     * @param onWatchedChanged called with the imdb id and the new state when a page changed whether a movie has been watched
+     */
+    public ChannelCatchUp(long channelId, DiscordRest rest, DiscordOutbox outbox, MovieRepository movieRepository,
+                          MovieMetadataCache metadataCache, BiConsumer<String, Boolean> onWatchedChanged) {
+        this.channelId = channelId;
+        this.rest = rest;
+        this.outbox = outbox;
+        this.movieRepository = movieRepository;
+        this.metadataCache = metadataCache;
+        this.onWatchedChanged = onWatchedChanged;
+    }
+
+    /**
+     * Runs again after a snapshot is restored; live messages stop advancing the mark until it has finished.
+     * Called while a catch-up is running, it lets that one start over from the mark once it has finished,
+     * so two never write the same pages.
+     */
+    public Mono<Void> run() {
+        return Mono.defer(() -> {
+            if (!isRunning.compareAndSet(false, true)) {
+                isRerunRequested.set(true);
+                return Mono.empty();
+            }
+            isRerunRequested.set(false);
+            return catchUp(movieRepository.beginCatchUp())
+                    .onErrorResume(e -> finish().then(Mono.error(e)))
+                    .then(Mono.defer(this::finish))
+                    .doOnCancel(this::release);
+        });
+    }
+
+    private Mono<Void> finish() {
+        release();
+        return isRerunRequested.getAndSet(false) ? run() : Mono.empty();
+    }
+
+    private void release() {
+        movieRepository.endCatchUp();
+        isRunning.set(false);
+    }
+
+    private Mono<Void> catchUp(long catchUpStart) {
+        long start = System.nanoTime();
+        isCaughtUp.set(false);
+        return movieRepository.fetchHighWaterMark(channelId)
+                .defaultIfEmpty(0L)
+                .doOnNext(mark -> Log.info("catch-up: reading channel history").with("channel", channelId).with("after_message", mark).log())
+                .flatMapMany(mark -> rest.getMessagesAfter(channelId, mark))
+                .limitRate(PAGE_SIZE)
+                .buffer(PAGE_SIZE)
+                // one page in flight and at most one buffered, however long the history is
+                .concatMap(page -> PAGE_LATENCY.time(catchUpPage(page, catchUpStart)), 1)
+                .reduce(new Totals(0, 0, 0, 0), (totals, page) -> new Totals(totals.messages() + page.messages(),
+                        totals.moviesAdded() + page.moviesAdded(), totals.likesAdded() + page.likesAdded(),
+                        totals.likesRemoved() + page.likesRemoved()))
+                .doOnNext(totals -> {
+                    isCaughtUp.set(true);
+                    Log.info("catch-up: done").with("channel", channelId).withMillisSince("latency_ms", start)
+                            .with("messages", totals.messages()).with("movies_added", totals.moviesAdded())
+                            .with("likes_added", totals.likesAdded()).with("likes_removed", totals.likesRemoved()).log();
+                })
+                .then();
+    }
+
+    /**
+     * Holds the mark below a live message with links until {@link #finish(long)} is called for it. Call before
+     * any later message can be handled.
+     */
+    public void begin(long messageId) {
+        unfinishedMessageIds.add(messageId);
+    }
+
+    /**
+     * Records a live message with links as handled once its movies are stored. A message that is never finished,
+     * because storing its movies failed, keeps holding the mark, so the next catch-up reads it again.
+     */
+    public Mono<Void> finish(long messageId) {
+        return Mono.defer(() -> {
+            unfinishedMessageIds.remove(messageId);
+            return advance(messageId);
+        });
+    }
+
+    /**
+     * Records a live message as handled. Ignored until the catch-up has finished, so an interrupted
+     * catch-up resumes where it stopped.
+     */
+    public Mono<Void> advance(long messageId) {
+        return Mono.defer(() -> {
+            long latestHandled = latestHandledMessageId.accumulateAndGet(messageId, Math::max);
+            if (!isCaughtUp.get()) return Mono.empty();
+            Long oldestUnfinished = unfinishedMessageIds.ceiling(Long.MIN_VALUE);
+            long mark = oldestUnfinished == null ? latestHandled : Math.min(latestHandled, oldestUnfinished - 1);
+            return movieRepository.advanceHighWaterMark(channelId, mark);
+        });
+    }
+
+    private Mono<Totals> catchUpPage(List<DiscordRest.HistoryMessage> page, long catchUpStart) {
+        long highWaterMark = page.stream().mapToLong(DiscordRest.HistoryMessage::id).max().orElseThrow();
+
+        Map<String, PageMovie> movies = new LinkedHashMap<>();
+        for (DiscordRest.HistoryMessage message : page) {
+            List<String> linkedImdbIds = EventRouter.extractImdbIds(message.content());
+            List<String> storedImdbIds = movieRepository.fetchImdbIdsFromMessageId(message.id());
+            boolean isStored = !storedImdbIds.isEmpty();
+            for (String imdbId : isStored ? storedImdbIds : linkedImdbIds) {
+                PageMovie movie = movies.computeIfAbsent(imdbId, PageMovie::new);
+                movie.messages.add(message);
+                if (!isStored) {
+                    movie.newMessageIds.add(message.id());
+                }
+                if (linkedImdbIds.contains(imdbId) && !message.isAuthorBot()) {
+                    // adding a movie likes it for the poster
+                    movie.linkAuthorIds.add(message.authorId());
+                }
+            }
+        }
+
+        return Flux.fromIterable(movies.values())
+                .flatMap(this::resolveMetadata)
+                .flatMap(this::toCatchUpMovie)
+                .collectList()
+                .flatMap(catchUpMovies -> movieRepository.applyCatchUpPage(channelId, highWaterMark, catchUpMovies, catchUpStart)
+                        .doOnNext(result -> afterPage(movies, result)))
+                .map(result -> new Totals(page.size(), result.moviesAdded(), result.likesAdded(), result.likesRemoved()));
+    }
+
+    /**
+     * Looks up metadata for movies with new messages. A movie that can't be resolved and isn't stored yet is
+     * skipped, like a live message whose movie can't be resolved.
+     */
+    private Mono<PageMovie> resolveMetadata(PageMovie movie) {
+        if (movie.newMessageIds.isEmpty()) return Mono.just(movie);
+        return metadataCache.get(movie.imdbId)
+                .map(metadata -> {
+                    movie.metadata = metadata;
+                    return movie;
+                })
+                .onErrorResume(e -> {
+                    // a movie with stored messages is in the database already and doesn't need metadata
+                    if (movie.messages.size() > movie.newMessageIds.size()) return Mono.just(movie);
+                    Log.warn("catch-up: skipping messages of movie").with("imdb_id", movie.imdbId).with("error", e).log();
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<MovieRepository.CatchUpMovie> toCatchUpMovie(PageMovie movie) {
+        boolean hasHumanEyes = false;
+        boolean hasHumanReset = false;
+        List<Mono<List<Long>>> likerFetches = new ArrayList<>();
+        for (DiscordRest.HistoryMessage message : movie.messages) {
+            for (DiscordRest.Reaction reaction : message.reactions()) {
+                // the bot's own reactions are confirmations, not votes
+                if (reaction.count() - (reaction.isMine() ? 1 : 0) <= 0) continue;
+                if (EventRouter.isThumbsUp(reaction.emoji())) {
+                    likerFetches.add(rest.getReactionUserIds(channelId, message.id(), reaction.emoji()).collectList());
+                } else if (reaction.emoji().equals(App.eyesEmoji.getRaw())) {
+                    hasHumanEyes = true;
+                } else if (reaction.emoji().equals(App.resetEmoji.getRaw())) {
+                    hasHumanReset = true;
+                }
+            }
+        }
+        // with both 👀 and 🔄 the order they were added in is unknown, so the stored state stays
+        Boolean hasBeenWatched = hasHumanEyes == hasHumanReset ? null : hasHumanEyes;
+
+        Set<Long> pageMessageIds = new HashSet<>();
+        movie.messages.forEach(message -> pageMessageIds.add(message.id()));
+        return Flux.fromIterable(likerFetches)
+                .flatMap(fetch -> fetch, REACTION_FETCH_CONCURRENCY)
+                .collect(() -> new HashSet<>(movie.linkAuthorIds), Set::addAll)
+                .map(likerIds -> new MovieRepository.CatchUpMovie(movie.imdbId, movie.metadata,
+                        List.copyOf(movie.newMessageIds), pageMessageIds, likerIds, hasBeenWatched));
+    }
+
+    private void afterPage(Map<String, PageMovie> movies, MovieRepository.CatchUpResult result) {
+        for (PageMovie movie : movies.values()) {
+            for (DiscordRest.HistoryMessage message : movie.messages) {
+                if (!movie.newMessageIds.contains(message.id()) || hasOwnThumbsUp(message)) continue;
+                outbox.addReaction(channelId, message.id(), App.thumbsUpEmoji.getRaw(), DiscordOutbox.Priority.BACKFILL)
+                        .subscribe(null, e -> Log.warn("catch-up: failed to confirm message").with("message", message.id())
+                                .with("error", e).log());
+            }
+        }
+        result.watchedChanges().forEach(onWatchedChanged);
+    }
+
+    private static boolean hasOwnThumbsUp(DiscordRest.HistoryMessage message) {
+        return message.reactions().stream()
+                .anyMatch(reaction -> reaction.isMine() && reaction.emoji().equals(App.thumbsUpEmoji.getRaw()));
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.jakobheiden;
+
+import java.util.List;
+
+/**
+ * What a gateway event asks the bot to do, as classified by {@link EventRouter}. Commands are plain
+ * data, so the handlers don't depend on the gateway and can be driven by synthetic commands.
+ */
+public sealed interface Command {
+
+    /**
+     * The movie channel the command is handled in.
+     */
+    long channelId();
+
+    /**
+     * A command that reads or writes state of a single movie. These are serialized per movie.
+     */
+    sealed interface MovieCommand extends Command {
+        String imdbId();
+    }
+
+    /**
+     * A message with one or more IMDb links. Its movies are stored together, so this isn't serialized per movie.
+     */
+    record AddMovies(long channelId, long messageId, long authorId, List<String> imdbIds) implements Command {
+    }
+
+    /**
+     * "@bot @user …" suggests the movies tied at the most likes of the mentioned users. With "ranked" right
+     * after the mentions, it suggests the best few by a score that also counts everyone's likes and how recent
+     * they are.
+     */
+    record SuggestMovies(long channelId, List<Long> mentionedUserIds, boolean isRanked) implements Command {
+    }
+
+    /**
+     * "@bot search text": movies whose title or year match the text.
+     */
+    record SearchMovies(long channelId, String text) implements Command {
+    }
+
+    /**
+     * "@bot restore name": replaces the channel's database with a snapshot. Only the channel owner may do this.
+     */
+    record RestoreSnapshot(long channelId, long authorId, String snapshotName) implements Command {
+    }
+
+    /**
+     * A movie channel message without an IMDb link was handled, so the channel catch-up can skip it.
+     */
+    record AdvanceHighWaterMark(long channelId, long messageId) implements Command {
+    }
+
+    record Like(long channelId, long userId, String imdbId) implements MovieCommand {
+    }
+
+    record Unlike(long channelId, long userId, String imdbId) implements MovieCommand {
+    }
+
+    record MarkSeen(long channelId, String imdbId) implements MovieCommand {
+    }
+
+    record MarkNotSeen(long channelId, String imdbId) implements MovieCommand {
+    }
+}
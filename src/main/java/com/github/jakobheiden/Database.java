@@ -0,0 +1,207 @@
+package com.github.jakobheiden;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.core.Codes;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * JDBC execution layer for the SQLite database. There is a single writer connection in WAL mode
+ * and a small pool of read-only connections, so reads don't queue behind writes. All work runs on
+ * virtual threads; concurrency is bounded by the writer lock and the size of the reader pool.
+ * <p>
+ * Every connection keeps its prepared statements open, see {@link #prepare(Connection, String)}, so
+ * SQLite parses and plans each statement once per connection instead of on every call.
+ */
+public class Database implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T apply(Connection connection) throws SQLException;
+    }
+
+    private static final int READER_COUNT = 4;
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+    private static final int BACKUP_BUSY_SLEEP_MILLIS = 100;
+    private static final int BACKUP_BUSY_RETRIES = BUSY_TIMEOUT_MILLIS / BACKUP_BUSY_SLEEP_MILLIS;
+
+    private final Connection writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final BlockingQueue<Connection> readers = new ArrayBlockingQueue<>(READER_COUNT);
+    // a connection is only used by whoever holds it, so the per-connection maps need no locking
+    private final Map<Connection, Map<String, PreparedStatement>> statements = new IdentityHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Scheduler scheduler = Schedulers.fromExecutorService(executor, "jdbc");
+
+    public Database(String url) throws SQLException {
+        SQLiteConfig writerConfig = new SQLiteConfig();
+        writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        writerConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        writerConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        writer = writerConfig.createConnection(url);
+        statements.put(writer, new HashMap<>());
+
+        SQLiteConfig readerConfig = new SQLiteConfig();
+        readerConfig.setReadOnly(true);
+        readerConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        for (int i = 0; i < READER_COUNT; i++) {
+            Connection reader = readerConfig.createConnection(url);
+            statements.put(reader, new HashMap<>());
+            readers.add(reader);
+        }
+    }
+
+    /**
+     * Returns the connection's statement for the SQL, preparing it on first use. The statement stays open
+     * until the database is closed, so callers must not close it, but must close its result sets: an open
+     * result set keeps its read transaction open. Only use it while holding the connection.
+     */
+    public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        Map<String, PreparedStatement> connectionStatements = statements.get(connection);
+        PreparedStatement statement = connectionStatements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            connectionStatements.put(sql, statement);
+        } else {
+            // a batch that failed halfway is still queued on the statement
+            statement.clearBatch();
+        }
+        return statement;
+    }
+
+    public <T> Mono<T> read(SqlWork<T> work) {
+        return Mono.fromCallable(() -> readBlocking(work)).subscribeOn(scheduler);
+    }
+
+    public <T> Mono<T> write(SqlWork<T> work) {
+        return Mono.fromCallable(() -> writeBlocking(work)).subscribeOn(scheduler);
+    }
+
+    /**
+     * Like {@link #read(SqlWork)}, recording the time from subscription to completion, including
+     * the wait for a reader connection.
+     */
+    public <T> Mono<T> read(LatencyHistogram latency, SqlWork<T> work) {
+        return latency.time(read(work));
+    }
+
+    public <T> Mono<T> write(LatencyHistogram latency, SqlWork<T> work) {
+        return latency.time(write(work));
+    }
+
+    public <T> T readBlocking(SqlWork<T> work) throws SQLException {
+        Connection reader;
+        try {
+            reader = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+        try {
+            return work.apply(reader);
+        } finally {
+            readers.add(reader);
+        }
+    }
+
+    public <T> T writeBlocking(SqlWork<T> work) throws SQLException {
+        writerLock.lock();
+        try {
+            return work.apply(writer);
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Runs the work in a single transaction on the writer connection.
+     */
+    public <T> T transactionBlocking(SqlWork<T> work) throws SQLException {
+        return writeBlocking(connection -> {
+            connection.setAutoCommit(false);
+            try {
+                T result = work.apply(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Writes a compacted copy of the connection's database to a new file with VACUUM INTO. The copy is one read
+     * transaction, so on a reader connection in WAL mode writes go on while it runs, and unlike the online backup
+     * API it never starts over because of them.
+     */
+    public static void snapshot(Connection connection, String destination) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("VACUUM INTO ?")) {
+            statement.setString(1, destination);
+            statement.execute();
+        }
+    }
+
+    /**
+     * Replaces the connection's database with the content of the file, in one write transaction. Other connections
+     * see the old or the new content, never a mix, so they don't need to be reopened.
+     */
+    public static void restore(Connection connection, String source) throws SQLException {
+        int resultCode = connection.unwrap(SQLiteConnection.class).getDatabase()
+                .restore("main", source, null, BACKUP_BUSY_SLEEP_MILLIS, BACKUP_BUSY_RETRIES, -1);
+        if (resultCode != Codes.SQLITE_OK) {
+            throw new SQLException("Restore from " + source + " failed with SQLite result code " + resultCode);
+        }
+    }
+
+    /**
+     * Waits for running work, then closes the statements of each connection before the connection itself.
+     * The writer is closed last, so its close can checkpoint the WAL without readers holding it back.
+     */
+    @Override
+    public void close() {
+        scheduler.dispose();
+        executor.close();
+        for (Connection reader : readers) {
+            closeQuietly(reader);
+        }
+        writerLock.lock();
+        try {
+            closeQuietly(writer);
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        for (PreparedStatement statement : statements.get(connection).values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                Log.warn("failed to close statement").with("error", e).log();
+            }
+        }
+        statements.get(connection).clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Log.warn("failed to close connection").with("error", e).log();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.jakobheiden;
+
+import discord4j.common.util.Snowflake;
+import discord4j.discordjson.json.MessageData;
+import discord4j.discordjson.json.UserData;
+import discord4j.rest.RestClient;
+import discord4j.rest.util.PaginationUtil;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+public class Discord4jRest implements DiscordRest {
+
+    private static final int REACTION_PAGE_SIZE = 100;
+
+    private volatile RestClient restClient;
+
+    public Discord4jRest(RestClient restClient) {
+        this.restClient = restClient;
+    }
+
+    /**
+     * Switches to the REST client of a new login, for example after the bot token changed.
+     */
+    public void setRestClient(RestClient restClient) {
+        this.restClient = restClient;
+    }
+
+    @Override
+    public Mono<Long> createMessage(long channelId, String content) {
+        return restClient.getChannelById(Snowflake.of(channelId))
+                .createMessage(content)
+                .map(messageData -> messageData.id().asLong());
+    }
+
+    @Override
+    public Mono<Void> addReaction(long channelId, long messageId, String emoji) {
+        return restClient.getMessageById(Snowflake.of(channelId), Snowflake.of(messageId))
+                .createReaction(emoji);
+    }
+
+    @Override
+    public Mono<Void> removeOwnReaction(long channelId, long messageId, String emoji) {
+        return restClient.getMessageById(Snowflake.of(channelId), Snowflake.of(messageId))
+                .deleteOwnReaction(emoji);
+    }
+
+    @Override
+    public Flux<HistoryMessage> getMessagesAfter(long channelId, long afterMessageId) {
+        return restClient.getChannelById(Snowflake.of(channelId))
+                .getMessagesAfter(Snowflake.of(afterMessageId))
+                .map(Discord4jRest::toHistoryMessage);
+    }
+
+    @Override
+    public Flux<Long> getReactionUserIds(long channelId, long messageId, String emoji) {
+        return PaginationUtil.paginateAfter(
+                        params -> restClient.getChannelService().getReactions(channelId, messageId, emoji, params),
+                        (UserData user) -> user.id().asLong(), 0, REACTION_PAGE_SIZE)
+                .filter(user -> !user.bot().toOptional().orElse(false))
+                .map(user -> user.id().asLong());
+    }
+
+    private static HistoryMessage toHistoryMessage(MessageData message) {
+        List<Reaction> reactions = message.reactions().toOptional().orElse(List.of()).stream()
+                .filter(reaction -> reaction.emoji().id().isEmpty())
+                .map(reaction -> new Reaction(reaction.emoji().name().orElse(""), reaction.count(), reaction.me()))
+                .toList();
+        return new HistoryMessage(message.id().asLong(), message.author().id().asLong(),
+                message.author().bot().toOptional().orElse(false), message.content(), reactions);
+    }
+}
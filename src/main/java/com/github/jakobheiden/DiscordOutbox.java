@@ -0,0 +1,222 @@
+package com.github.jakobheiden;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Scheduler for everything the bot sends to Discord. Each route (message creation or reactions in
+ * a channel) has its own token bucket, replies to users go before bulk reaction backfills,
+ * redundant reaction operations on the same message are dropped, and error notices to the same
+ * channel are merged into as few messages as possible.
+ */
+public class DiscordOutbox {
+
+    public enum Priority {REPLY, BACKFILL}
+
+    private enum RouteType {
+        MESSAGES(5, Duration.ofSeconds(1)),
+        REACTIONS(1, Duration.ofMillis(250));
+
+        final int burst;
+        final Duration interval;
+
+        RouteType(int burst, Duration interval) {
+            this.burst = burst;
+            this.interval = interval;
+        }
+    }
+
+    private static final int MAX_MESSAGE_LENGTH = 2000;
+
+    private static final class Action<T> {
+        final String route;
+        final RouteType routeType;
+        final Supplier<Mono<T>> work;
+        final Sinks.One<T> result = Sinks.one();
+        boolean isCancelled;
+
+        Action(RouteType routeType, long channelId, Supplier<Mono<T>> work) {
+            this.route = routeType + ":" + channelId;
+            this.routeType = routeType;
+            this.work = work;
+        }
+
+        void start() {
+            work.get().subscribe(result::tryEmitValue, result::tryEmitError, result::tryEmitEmpty);
+        }
+
+        void cancel() {
+            isCancelled = true;
+            result.tryEmitEmpty();
+        }
+    }
+
+    private final DiscordRest rest;
+    private final Object lock = new Object();
+    private final Map<Priority, Deque<Action<?>>> queues = new EnumMap<>(Priority.class);
+    private final Map<String, TokenBucket> buckets = new HashMap<>();
+    private final Map<String, Action<Void>> pendingReactions = new HashMap<>();
+    private final Map<Long, StringBuilder> pendingNotices = new HashMap<>();
+    private final Scheduler dispatcher = Schedulers.newSingle("discord-outbox", true);
+    // at most one immediate drain is pending, however many actions are submitted meanwhile
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean();
+    // only touched on the dispatcher thread
+    private Disposable delayedDrain;
+
+    public DiscordOutbox(DiscordRest rest) {
+        this.rest = rest;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+        Metrics.gauge("dienstag_queue_depth", "Items waiting in internal queues", "queue", "discord_outbox", this::queuedActions);
+    }
+
+    public Mono<Long> createMessage(long channelId, String content, Priority priority) {
+        return submit(priority, new Action<>(RouteType.MESSAGES, channelId, () -> rest.createMessage(channelId, content)));
+    }
+
+    public Mono<Void> addReaction(long channelId, long messageId, String emoji, Priority priority) {
+        return submitReaction(priority, channelId, messageId, emoji, () -> rest.addReaction(channelId, messageId, emoji));
+    }
+
+    public Mono<Void> removeOwnReaction(long channelId, long messageId, String emoji, Priority priority) {
+        return submitReaction(priority, channelId, messageId, emoji, () -> rest.removeOwnReaction(channelId, messageId, emoji));
+    }
+
+    /**
+     * Queues a line for the channel. Lines queued while an earlier notice is still waiting are appended to it.
+     */
+    public void sendNotice(long channelId, String line) {
+        String truncated = line.length() > MAX_MESSAGE_LENGTH ? line.substring(0, MAX_MESSAGE_LENGTH) : line;
+        synchronized (lock) {
+            StringBuilder pending = pendingNotices.get(channelId);
+            if (pending != null && pending.length() + 1 + truncated.length() <= MAX_MESSAGE_LENGTH) {
+                pending.append('\n').append(truncated);
+                return;
+            }
+
+            StringBuilder text = new StringBuilder(truncated);
+            pendingNotices.put(channelId, text);
+            enqueue(Priority.REPLY, new Action<>(RouteType.MESSAGES, channelId, () -> {
+                synchronized (lock) {
+                    pendingNotices.remove(channelId, text);
+                }
+                return rest.createMessage(channelId, text.toString())
+                        .doOnError(e -> Log.warn("failed to send notice").with("channel", channelId).with("error", e).log());
+            }));
+        }
+        scheduleDrain();
+    }
+
+    public int queuedActions() {
+        synchronized (lock) {
+            return queues.values().stream().mapToInt(Deque::size).sum();
+        }
+    }
+
+    private Mono<Void> submitReaction(Priority priority, long channelId, long messageId, String emoji, Supplier<Mono<Void>> work) {
+        String key = channelId + ":" + messageId + ":" + emoji;
+        return Mono.defer(() -> {
+            Action<Void> action = new Action<>(RouteType.REACTIONS, channelId, () -> {
+                synchronized (lock) {
+                    pendingReactions.remove(key);
+                }
+                return work.get();
+            });
+            synchronized (lock) {
+                // only the latest add or remove for a reaction matters
+                Action<Void> superseded = pendingReactions.put(key, action);
+                if (superseded != null) {
+                    superseded.cancel();
+                }
+                enqueue(priority, action);
+            }
+            scheduleDrain();
+            return action.result.asMono();
+        });
+    }
+
+    private <T> Mono<T> submit(Priority priority, Action<T> action) {
+        return Mono.defer(() -> {
+            synchronized (lock) {
+                enqueue(priority, action);
+            }
+            scheduleDrain();
+            return action.result.asMono();
+        });
+    }
+
+    private void enqueue(Priority priority, Action<?> action) {
+        queues.get(priority).addLast(action);
+    }
+
+    private void scheduleDrain() {
+        if (isDrainScheduled.compareAndSet(false, true)) {
+            dispatcher.schedule(this::drain);
+        }
+    }
+
+    /**
+     * Starts every action whose route has a token, then schedules one delayed drain for the earliest
+     * token, replacing the previous one. So there is a single drain chain, whatever the queue length.
+     */
+    private void drain() {
+        isDrainScheduled.set(false);
+        if (delayedDrain != null) {
+            delayedDrain.dispose();
+            delayedDrain = null;
+        }
+        long waitNanos = Long.MAX_VALUE;
+        Set<String> waitingRoutes = new HashSet<>();
+        synchronized (lock) {
+            for (Priority priority : Priority.values()) {
+                Iterator<Action<?>> iterator = queues.get(priority).iterator();
+                while (iterator.hasNext()) {
+                    Action<?> action = iterator.next();
+                    if (action.isCancelled) {
+                        iterator.remove();
+                        continue;
+                    }
+                    // later actions of a route that is out of tokens can't start either
+                    if (waitingRoutes.contains(action.route)) continue;
+                    long wait = bucket(action).tryAcquire();
+                    if (wait == 0) {
+                        iterator.remove();
+                        action.start();
+                    } else {
+                        waitingRoutes.add(action.route);
+                        waitNanos = Math.min(waitNanos, wait);
+                    }
+                }
+            }
+        }
+        if (waitNanos != Long.MAX_VALUE) {
+            // clears itself before running, so a drain only ever disposes a delayed drain that hasn't started
+            delayedDrain = dispatcher.schedule(() -> {
+                delayedDrain = null;
+                drain();
+            }, waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private TokenBucket bucket(Action<?> action) {
+        return buckets.computeIfAbsent(action.route,
+                _ -> new TokenBucket(action.routeType.burst, action.routeType.interval.toNanos()));
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.jakobheiden;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * The Discord REST calls the bot makes. {@link DiscordOutbox} only talks to Discord through this,
+ * so it can be pointed at a fake endpoint.
+ */
+public interface DiscordRest {
+
+    record HistoryMessage(long id, long authorId, boolean isAuthorBot, String content, List<Reaction> reactions) {
+    }
+
+    /**
+     * A Unicode emoji reaction on a message. isMine is set if the bot is among the count.
+     */
+    record Reaction(String emoji, int count, boolean isMine) {
+    }
+
+    /**
+     * @return the id of the created message
+     */
+    Mono<Long> createMessage(long channelId, String content);
+
+    Mono<Void> addReaction(long channelId, long messageId, String emoji);
+
+    Mono<Void> removeOwnReaction(long channelId, long messageId, String emoji);
+
+    /**
+     * Pages through the channel's messages after the given one, oldest first. Pages are only
+     * requested as the subscriber asks for more.
+     */
+    Flux<HistoryMessage> getMessagesAfter(long channelId, long afterMessageId);
+
+    /**
+     * @return the ids of the users, not bots, that reacted to the message with the emoji
+     */
+    Flux<Long> getReactionUserIds(long channelId, long messageId, String emoji);
+}
@@ -0,0 +1,196 @@
+package com.github.jakobheiden;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.event.domain.Event;
+import discord4j.core.event.domain.message.MessageCreateEvent;
+import discord4j.core.event.domain.message.ReactionAddEvent;
+import discord4j.core.event.domain.message.ReactionRemoveEvent;
+import discord4j.core.object.emoji.Emoji;
+import discord4j.core.object.emoji.UnicodeEmoji;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies each gateway event once into the commands it triggers. Events outside the movie
+ * channels are dropped here.
+ */
+public class EventRouter {
+
+    private static final Pattern IMDB_ID_PATTERN = Pattern.compile("imdb\\.com/(?:[a-z]{2}/)?title/(tt\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BOT_COMMAND_PATTERN = Pattern.compile("^\\s*<@!?(\\d+)>\\s+(search|restore)\\s+(.+)$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    // an option right after the mentions, so "ranked" in the rest of the message doesn't switch modes
+    private static final Pattern RANKED_OPTION_PATTERN = Pattern.compile("^\\s*(?:<@!?\\d+>\\s*)+ranked\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final LongAdder MESSAGE_CREATE_EVENTS = eventCounter("message_create");
+    private static final LongAdder REACTION_ADD_EVENTS = eventCounter("reaction_add");
+    private static final LongAdder REACTION_REMOVE_EVENTS = eventCounter("reaction_remove");
+    private static final LongAdder OTHER_EVENTS = eventCounter("other");
+
+    // replaced as a whole when the settings change
+    private volatile Map<Long, MovieRepository> repositories;
+    private volatile Snowflake botSnowflake;
+
+    /**
+     * @param repositories the repository of each movie channel, by channel id
+     */
+    public EventRouter(Map<Long, MovieRepository> repositories, Snowflake botSnowflake) {
+        this.repositories = Map.copyOf(repositories);
+        this.botSnowflake = botSnowflake;
+    }
+
+    public void setRepositories(Map<Long, MovieRepository> repositories) {
+        this.repositories = Map.copyOf(repositories);
+    }
+
+    public void setBotId(long botId) {
+        this.botSnowflake = Snowflake.of(botId);
+    }
+
+    public List<Command> classify(Event event) {
+        return switch (event) {
+            case MessageCreateEvent messageCreateEvent -> {
+                MESSAGE_CREATE_EVENTS.increment();
+                yield classifyMessage(messageCreateEvent.getMessage());
+            }
+            case ReactionAddEvent reactionAddEvent -> {
+                REACTION_ADD_EVENTS.increment();
+                yield classifyReactionAdd(reactionAddEvent);
+            }
+            case ReactionRemoveEvent reactionRemoveEvent -> {
+                REACTION_REMOVE_EVENTS.increment();
+                yield classifyReactionRemove(reactionRemoveEvent);
+            }
+            default -> {
+                OTHER_EVENTS.increment();
+                yield List.of();
+            }
+        };
+    }
+
+    private static LongAdder eventCounter(String type) {
+        return Metrics.counter("dienstag_gateway_events_total", "Gateway events received, by type", "type", type);
+    }
+
+    private List<Command> classifyMessage(Message message) {
+        long channelId = message.getChannelId().asLong();
+        if (!repositories.containsKey(channelId)) return List.of();
+
+        List<Command> commands = new ArrayList<>(2);
+        long authorId = message.getAuthor().map(author -> author.getId().asLong()).orElse(0L);
+        boolean isAuthorBot = message.getAuthor().map(User::isBot).orElse(false);
+        List<String> imdbIds = extractImdbIds(message.getContent());
+        if (!imdbIds.isEmpty()) {
+            commands.add(new Command.AddMovies(channelId, message.getId().asLong(), authorId, imdbIds));
+        } else if (!isAuthorBot) {
+            // the bot's own suggestions would cost a write each; the mark catches up with the next human message
+            commands.add(new Command.AdvanceHighWaterMark(channelId, message.getId().asLong()));
+        }
+
+        List<User> mentions = message.getUserMentions();
+        if (mentions.stream().map(User::getId).anyMatch(botSnowflake::equals)) {
+            Command botCommand = classifyBotCommand(channelId, authorId, message.getContent());
+            if (botCommand != null) {
+                commands.add(botCommand);
+                return commands;
+            }
+
+            List<Long> mentionedUserIds = mentions.stream()
+                    .filter(user -> !user.isBot())
+                    .map(user -> user.getId().asLong())
+                    .toList();
+            if (!mentionedUserIds.isEmpty()) {
+                commands.add(new Command.SuggestMovies(channelId, mentionedUserIds, isRankedRequest(message.getContent())));
+            }
+        }
+        return commands;
+    }
+
+    private List<Command> classifyReactionAdd(ReactionAddEvent event) {
+        long channelId = event.getChannelId().asLong();
+        MovieRepository movieRepository = repositories.get(channelId);
+        if (movieRepository == null) return List.of();
+        List<String> imdbIds = movieRepository.fetchImdbIdsFromMessageId(event.getMessageId().asLong());
+        if (imdbIds.isEmpty()) return List.of();
+
+        String emoji = rawUnicode(event.getEmoji());
+        if (emoji == null) return List.of();
+        if (isThumbsUp(emoji)) {
+            if (event.getMember().get().isBot()) return List.of();
+            long userId = event.getUserId().asLong();
+            // a reaction on a message with several movies applies to each of them
+            return imdbIds.stream().<Command>map(imdbId -> new Command.Like(channelId, userId, imdbId)).toList();
+        }
+        if (emoji.equals(App.eyesEmoji.getRaw())) {
+            return imdbIds.stream().<Command>map(imdbId -> new Command.MarkSeen(channelId, imdbId)).toList();
+        }
+        if (emoji.equals(App.resetEmoji.getRaw())) {
+            return imdbIds.stream().<Command>map(imdbId -> new Command.MarkNotSeen(channelId, imdbId)).toList();
+        }
+        return List.of();
+    }
+
+    private List<Command> classifyReactionRemove(ReactionRemoveEvent event) {
+        long channelId = event.getChannelId().asLong();
+        MovieRepository movieRepository = repositories.get(channelId);
+        if (movieRepository == null) return List.of();
+        String emoji = rawUnicode(event.getEmoji());
+        if (emoji == null || !isThumbsUp(emoji)) return List.of();
+
+        long userId = event.getUserId().asLong();
+        return movieRepository.fetchImdbIdsFromMessageId(event.getMessageId().asLong()).stream()
+                .<Command>map(imdbId -> new Command.Unlike(channelId, userId, imdbId))
+                .toList();
+    }
+
+    /**
+     * Scans the message once.
+     *
+     * @return the distinct ids of all IMDb title links in the message, in order of appearance
+     */
+    public static List<String> extractImdbIds(String content) {
+        Matcher matcher = IMDB_ID_PATTERN.matcher(content);
+        if (!matcher.find()) return List.of();
+        List<String> imdbIds = new ArrayList<>(1);
+        do {
+            String imdbId = matcher.group(1);
+            if (!imdbIds.contains(imdbId)) {
+                imdbIds.add(imdbId);
+            }
+        } while (matcher.find());
+        return imdbIds;
+    }
+
+    /**
+     * @return the command if the message starts with a mention of the bot followed by "search" or "restore", otherwise null
+     */
+    private Command classifyBotCommand(long channelId, long authorId, String content) {
+        Matcher matcher = BOT_COMMAND_PATTERN.matcher(content);
+        if (!matcher.matches() || !matcher.group(1).equals(botSnowflake.asString())) return null;
+        String argument = matcher.group(3).strip();
+        return matcher.group(2).equalsIgnoreCase("search")
+                ? new Command.SearchMovies(channelId, argument)
+                : new Command.RestoreSnapshot(channelId, authorId, argument);
+    }
+
+    static boolean isRankedRequest(String content) {
+        return RANKED_OPTION_PATTERN.matcher(content).find();
+    }
+
+    private static String rawUnicode(Emoji emoji) {
+        return emoji instanceof UnicodeEmoji unicodeEmoji ? unicodeEmoji.getRaw() : null;
+    }
+
+    static boolean isThumbsUp(String raw) {
+        // Match 👍 and all skin tone variants
+        return raw.startsWith("👍");
+    }
+}
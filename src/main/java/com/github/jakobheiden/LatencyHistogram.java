@@ -0,0 +1,113 @@
+package com.github.jakobheiden;
+
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HDR-style log-linear latency histogram in nanoseconds. Every power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, which bounds the relative error at 12.5%. Recording is a
+ * few atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sumNanos.add(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public <T> Mono<T> time(Mono<T> mono) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return mono.doFinally(_ -> recordSince(start));
+        });
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Cumulative counts for Prometheus histogram buckets: element {@code i} counts the values at or below
+     * {@code boundsNanos[i]}, and the last element counts everything. A bucket of this histogram that
+     * straddles a bound is left out of it, so a count may be low by up to the 12.5% bucket resolution.
+     *
+     * @param boundsNanos upper bounds in ascending order
+     */
+    public long[] cumulativeCounts(long[] boundsNanos) {
+        long[] cumulative = new long[boundsNanos.length + 1];
+        int bound = 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            while (bound < boundsNanos.length && upperBound(i) > boundsNanos[bound]) {
+                cumulative[bound++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        while (bound < cumulative.length) {
+            cumulative[bound++] = seen;
+        }
+        return cumulative;
+    }
+
+    /**
+     * @return the upper bound of the bucket containing the given quantile, or 0 if nothing was recorded
+     */
+    public long quantileNanos(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBound(i), maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.jakobheiden;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind queue for likes. Operations are coalesced per (imdb_id, user_id), so only the
+ * last like or unlike for a pair is written, and flushed in one transaction every
+ * {@link #FLUSH_INTERVAL_MILLIS} ms or once {@link #MAX_PENDING_OPERATIONS} are queued.
+ */
+public class LikeJournal {
+
+    private static final long FLUSH_INTERVAL_MILLIS = 250;
+    private static final int MAX_PENDING_OPERATIONS = 64;
+    private static final LatencyHistogram FLUSH_LATENCY = Metrics.latency("dienstag_like_journal_flush_seconds",
+            "Time to write one batch of likes and unlikes", null, null);
+    private static final LongAdder DUPLICATE_LIKES = Metrics.counter("dienstag_duplicate_likes_total",
+            "Likes that were already in the database", null, null);
+
+    private record LikeKey(String imdbId, long userId) {
+    }
+
+    /**
+     * @param likedAtSeconds the time to store with a like, as the suggestion engine has it
+     */
+    private record Operation(boolean isLike, long likedAtSeconds) {
+    }
+
+    private static final Operation UNLIKE = new Operation(false, 0);
+
+    private final Database database;
+    private final String name;
+    private final Map<LikeKey, Operation> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "like-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param name identifies the journal in the queue depth gauge
+     */
+    public LikeJournal(Database database, String name) {
+        this(database, name, FLUSH_INTERVAL_MILLIS);
+    }
+
+    LikeJournal(Database database, String name, long flushIntervalMillis) {
+        this.database = database;
+        this.name = name;
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        Metrics.gauge("dienstag_queue_depth", "Items waiting in internal queues", "queue", name, this::pendingOperations);
+    }
+
+    public void like(long userId, String imdbId, long likedAtSeconds) {
+        enqueue(new LikeKey(imdbId, userId), new Operation(true, likedAtSeconds));
+    }
+
+    public void unlike(String imdbId, long userId) {
+        enqueue(new LikeKey(imdbId, userId), UNLIKE);
+    }
+
+    private void enqueue(LikeKey key, Operation operation) {
+        int pendingCount;
+        synchronized (pending) {
+            // a later operation on the same pair supersedes the earlier one
+            pending.remove(key);
+            pending.put(key, operation);
+            pendingCount = pending.size();
+        }
+        if (pendingCount >= MAX_PENDING_OPERATIONS) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * @return whether a like or unlike of the pair is queued and not yet written
+     */
+    public boolean isPending(String imdbId, long userId) {
+        synchronized (pending) {
+            return pending.containsKey(new LikeKey(imdbId, userId));
+        }
+    }
+
+    public int pendingOperations() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Flushes are serialized by the writer connection. Callers that already hold it, like the repository's
+     * write paths, take no other lock first, so the lock order is always writer before journal.
+     */
+    public void flush() throws SQLException {
+        database.writeBlocking(_ -> {
+            Map<LikeKey, Operation> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) return null;
+                batch = new LinkedHashMap<>(pending);
+                pending.clear();
+            }
+
+            long start = System.nanoTime();
+            try {
+                write(batch);
+                FLUSH_LATENCY.recordSince(start);
+            } catch (SQLException e) {
+                requeue(batch);
+                throw e;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Flushes what is queued and stops the background flusher. Called from the shutdown hook.
+     */
+    public void close() throws SQLException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+        }
+        Metrics.remove("dienstag_queue_depth", "queue", name);
+        flush();
+    }
+
+    private void write(Map<LikeKey, Operation> batch) throws SQLException {
+        List<LikeKey> likes = new ArrayList<>();
+        List<LikeKey> unlikes = new ArrayList<>();
+        batch.forEach((key, operation) -> (operation.isLike() ? likes : unlikes).add(key));
+
+        int[][] results = database.transactionBlocking(connection -> new int[][]{
+                executeBatch(database.prepare(connection, MovieRepository.UPSERT_LIKE_SQL), likes, batch),
+                executeBatch(database.prepare(connection, MovieRepository.DELETE_LIKE_SQL), unlikes, batch)});
+        int[] likeResults = results[0];
+        int[] unlikeResults = results[1];
+
+        for (int i = 0; i < likes.size(); i++) {
+            LikeKey key = likes.get(i);
+            if (likeResults[i] == 0) {
+                DUPLICATE_LIKES.increment();
+                Log.info("duplicate like ignored").with("user", key.userId()).with("imdb_id", key.imdbId()).log();
+            } else {
+                Log.info("like added").with("user", key.userId()).with("imdb_id", key.imdbId()).log();
+            }
+        }
+        for (int i = 0; i < unlikes.size(); i++) {
+            LikeKey key = unlikes.get(i);
+            if (unlikeResults[i] == 0) {
+                Log.info("no like to remove").with("user", key.userId()).with("imdb_id", key.imdbId()).log();
+            } else {
+                Log.info("like removed").with("user", key.userId()).with("imdb_id", key.imdbId()).log();
+            }
+        }
+    }
+
+    private static int[] executeBatch(PreparedStatement statement, List<LikeKey> keys, Map<LikeKey, Operation> batch)
+            throws SQLException {
+        if (keys.isEmpty()) return new int[0];
+        for (LikeKey key : keys) {
+            statement.setString(1, key.imdbId());
+            statement.setLong(2, key.userId());
+            Operation operation = batch.get(key);
+            if (operation.isLike()) {
+                statement.setLong(3, operation.likedAtSeconds());
+            }
+            statement.addBatch();
+        }
+        return statement.executeBatch();
+    }
+
+    private void requeue(Map<LikeKey, Operation> batch) {
+        synchronized (pending) {
+            // operations queued while the failed batch was written are newer and win
+            batch.forEach(pending::putIfAbsent);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            Log.error("failed to flush likes").with("error", e).log();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.github.jakobheiden;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured log. Events go into a preallocated ring buffer and a background thread formats
+ * and writes them, so logging threads neither block on stdout nor allocate. When the buffer is full,
+ * events are dropped and counted instead of waiting.
+ * <p>
+ * Usage: {@code Log.info("like added").with("user", userId).with("imdb_id", imdbId).log()}. The fields are
+ * collected in a builder of the calling thread, and {@link Event#log()} claims a slot of the buffer and
+ * publishes it in one step. An event that throws while it is built or is never logged is just lost.
+ * Virtual threads mostly live for one task, so a builder per thread would be a builder per event; they
+ * borrow one from a shared pool instead.
+ * <p>
+ * Lines look like {@code INFO like added user=1 imdb_id=tt0111161}. Under systemd the level is written as
+ * a syslog priority prefix instead, so journald records it and adds the timestamp itself.
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG(7), INFO(6), WARN(4), ERROR(3);
+
+        private final int syslogPriority;
+
+        Level(int syslogPriority) {
+            this.syslogPriority = syslogPriority;
+        }
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_FIELDS = 8;
+    private static final int POOLED_BUILDERS = 64;
+    private static final boolean IS_JOURNALD = System.getenv("JOURNAL_STREAM") != null;
+    private static final LongAdder DROPPED = Metrics.counter("dienstag_log_events_dropped_total",
+            "Log events dropped because the log buffer was full", null, null);
+
+    private static final byte LONG = 0;
+    private static final byte DOUBLE = 1;
+    private static final byte STRING = 2;
+
+    /**
+     * The fields of an event, shared by the ring slots and the builders.
+     */
+    private static class Fields {
+        Level level;
+        String message;
+        int fieldCount;
+        final String[] keys = new String[MAX_FIELDS];
+        final byte[] kinds = new byte[MAX_FIELDS];
+        final long[] numbers = new long[MAX_FIELDS];
+        final String[] strings = new String[MAX_FIELDS];
+
+        void copyTo(Fields other) {
+            other.level = level;
+            other.message = message;
+            other.fieldCount = fieldCount;
+            System.arraycopy(keys, 0, other.keys, 0, fieldCount);
+            System.arraycopy(kinds, 0, other.kinds, 0, fieldCount);
+            System.arraycopy(numbers, 0, other.numbers, 0, fieldCount);
+            System.arraycopy(strings, 0, other.strings, 0, fieldCount);
+        }
+
+        void clearStrings() {
+            message = null;
+            Arrays.fill(strings, 0, fieldCount, null);
+        }
+    }
+
+    private static final class Slot extends Fields {
+        volatile long publishedSequence = -1;
+        long timestampMillis;
+    }
+
+    public static final class Event extends Fields {
+        private final boolean isNoop;
+        private final boolean isPooled;
+        private boolean isInUse;
+
+        private Event(boolean isNoop, boolean isPooled) {
+            this.isNoop = isNoop;
+            this.isPooled = isPooled;
+        }
+
+        public Event with(String key, long value) {
+            int field = nextField(key, LONG);
+            if (field >= 0) numbers[field] = value;
+            return this;
+        }
+
+        public Event with(String key, double value) {
+            int field = nextField(key, DOUBLE);
+            if (field >= 0) numbers[field] = Double.doubleToRawLongBits(value);
+            return this;
+        }
+
+        public Event with(String key, String value) {
+            int field = nextField(key, STRING);
+            if (field >= 0) strings[field] = value;
+            return this;
+        }
+
+        /**
+         * The message of the throwable, or its class if it has none.
+         */
+        public Event with(String key, Throwable throwable) {
+            return with(key, throwable.getMessage() != null ? throwable.getMessage() : throwable.getClass().getName());
+        }
+
+        /**
+         * Milliseconds since the {@link System#nanoTime()} start.
+         */
+        public Event withMillisSince(String key, long startNanos) {
+            return with(key, (System.nanoTime() - startNanos) / 1e6);
+        }
+
+        public void log() {
+            if (isNoop) return;
+            publish(this);
+            clearStrings();
+            isInUse = false;
+            if (isPooled) {
+                returnBuilder(this);
+            }
+        }
+
+        private int nextField(String key, byte kind) {
+            if (isNoop || fieldCount == MAX_FIELDS) return -1;
+            keys[fieldCount] = key;
+            kinds[fieldCount] = kind;
+            return fieldCount++;
+        }
+    }
+
+    private static final Event NOOP = new Event(true, false);
+    private static final ThreadLocal<Event> BUILDERS = ThreadLocal.withInitial(() -> new Event(false, false));
+    // for virtual threads; an empty entry is a builder that is in use, or was lost with an event that was never logged
+    private static final AtomicReferenceArray<Event> POOL = new AtomicReferenceArray<>(POOLED_BUILDERS);
+    private static final Slot[] RING = new Slot[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static volatile Level minimumLevel = Level.INFO;
+    private static final AtomicBoolean isWriterParked = new AtomicBoolean();
+    private static final Thread writer;
+    private static final Object writerLock = new Object();
+    private static final StringBuilder line = new StringBuilder(256);
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Slot();
+        }
+        Metrics.gauge("dienstag_queue_depth", "Items waiting in internal queues", "queue", "log",
+                () -> claimed.get() - consumed);
+        writer = Thread.ofPlatform().name("log-writer").daemon().start(Log::writeLoop);
+        // shutdown hooks run concurrently, so the ones that log call flush() themselves when done
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level level) {
+        minimumLevel = level;
+    }
+
+    /**
+     * For events whose fields are expensive to compute, which would otherwise be computed and thrown away.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= minimumLevel.ordinal();
+    }
+
+    /**
+     * Writes everything logged so far, for shutdown paths that can't wait for the writer thread.
+     */
+    public static void flush() {
+        drain();
+    }
+
+    public static Event debug(String message) {
+        return start(Level.DEBUG, message);
+    }
+
+    public static Event info(String message) {
+        return start(Level.INFO, message);
+    }
+
+    public static Event warn(String message) {
+        return start(Level.WARN, message);
+    }
+
+    public static Event error(String message) {
+        return start(Level.ERROR, message);
+    }
+
+    private static Event start(Level level, String message) {
+        if (!isEnabled(level)) return NOOP;
+        Event event = Thread.currentThread().isVirtual() ? borrowBuilder() : BUILDERS.get();
+        if (event.isInUse) {
+            // logging while a field is computed, or an event of this thread that was never logged
+            event = new Event(false, false);
+        }
+        event.isInUse = true;
+        event.level = level;
+        event.message = message;
+        event.fieldCount = 0;
+        return event;
+    }
+
+    /**
+     * Takes a builder from the pool, starting at an entry that depends on the thread so threads rarely contend.
+     * Only allocates when every pooled builder is in use, and that one refills the pool once it is logged.
+     */
+    private static Event borrowBuilder() {
+        int start = (int) Thread.currentThread().threadId();
+        for (int i = 0; i < POOLED_BUILDERS; i++) {
+            Event event = POOL.getAndSet((start + i) & (POOLED_BUILDERS - 1), null);
+            if (event != null) return event;
+        }
+        return new Event(false, true);
+    }
+
+    private static void returnBuilder(Event event) {
+        int start = (int) Thread.currentThread().threadId();
+        for (int i = 0; i < POOLED_BUILDERS; i++) {
+            if (POOL.compareAndSet((start + i) & (POOLED_BUILDERS - 1), null, event)) return;
+        }
+    }
+
+    private static void publish(Event event) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = RING[(int) sequence & MASK];
+        event.copyTo(slot);
+        slot.timestampMillis = System.currentTimeMillis();
+        slot.publishedSequence = sequence;
+        if (isWriterParked.get() && isWriterParked.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain()) continue;
+            isWriterParked.set(true);
+            // an event published before the flag was set didn't wake the writer, so look once more
+            if (!drain()) {
+                LockSupport.park();
+            }
+            isWriterParked.set(false);
+        }
+    }
+
+    /**
+     * Writes the published events in order, up to the first slot that is claimed but not yet filled.
+     *
+     * @return whether anything was written
+     */
+    private static boolean drain() {
+        synchronized (writerLock) {
+            boolean isWritten = false;
+            while (true) {
+                long sequence = consumed;
+                Slot slot = RING[(int) sequence & MASK];
+                if (slot.publishedSequence != sequence) break;
+                format(slot);
+                slot.clearStrings();
+                out.append(line).append('\n');
+                // frees the slot for the producers
+                consumed = sequence + 1;
+                isWritten = true;
+            }
+            if (isWritten) {
+                out.flush();
+            }
+            return isWritten;
+        }
+    }
+
+    private static void format(Slot slot) {
+        line.setLength(0);
+        if (IS_JOURNALD) {
+            line.append('<').append(slot.level.syslogPriority).append('>');
+        } else {
+            line.append(Instant.ofEpochMilli(slot.timestampMillis)).append(' ').append(slot.level).append(' ');
+        }
+        line.append(slot.message);
+        for (int i = 0; i < slot.fieldCount; i++) {
+            line.append(' ').append(slot.keys[i]).append('=');
+            switch (slot.kinds[i]) {
+                case LONG -> line.append(slot.numbers[i]);
+                case DOUBLE -> line.append(String.format(Locale.ROOT, "%.2f", Double.longBitsToDouble(slot.numbers[i])));
+                default -> appendString(slot.strings[i]);
+            }
+        }
+    }
+
+    /**
+     * Quotes values with spaces, quotes or equals signs, so every line splits into fields unambiguously.
+     */
+    private static void appendString(String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        boolean needsQuotes = value.isEmpty();
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!needsQuotes) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                default -> line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
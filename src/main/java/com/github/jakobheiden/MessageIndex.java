@@ -0,0 +1,135 @@
+package com.github.jakobheiden;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the messages table. Message snowflakes are kept in an open-addressing
+ * long[] table mapping to movie ordinals, so lookups don't box and don't touch SQLite. A message
+ * with several movies maps to a negative value instead, which points into a list of ordinal groups.
+ */
+public class MessageIndex {
+
+    private static final long EMPTY_KEY = 0L; // Discord never issues snowflake 0
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+
+    private final List<int[]> ordinalGroups = new ArrayList<>();
+    private final List<String> imdbIdsByOrdinal = new ArrayList<>();
+    private final Map<String, Integer> ordinalsByImdbId = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void put(long messageId, String imdbId) {
+        lock.writeLock().lock();
+        try {
+            if (size + 1 > keys.length * MAX_LOAD_FACTOR) {
+                resize(keys.length * 2);
+            }
+            int ordinal = ordinalsByImdbId.computeIfAbsent(imdbId, id -> {
+                imdbIdsByOrdinal.add(id);
+                return imdbIdsByOrdinal.size() - 1;
+            });
+            int mask = keys.length - 1;
+            for (int slot = slotOf(messageId, mask); ; slot = (slot + 1) & mask) {
+                if (keys[slot] == EMPTY_KEY) {
+                    keys[slot] = messageId;
+                    values[slot] = ordinal;
+                    size++;
+                    return;
+                }
+                if (keys[slot] == messageId) {
+                    values[slot] = withOrdinal(values[slot], ordinal);
+                    return;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the IMDb ids of the movies posted in the message, empty if the message is not a movie message
+     */
+    public List<String> get(long messageId) {
+        lock.readLock().lock();
+        try {
+            int mask = keys.length - 1;
+            for (int slot = slotOf(messageId, mask); ; slot = (slot + 1) & mask) {
+                long key = keys[slot];
+                if (key == messageId) return imdbIds(values[slot]);
+                if (key == EMPTY_KEY) return List.of();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<String> imdbIds(int value) {
+        if (value >= 0) return List.of(imdbIdsByOrdinal.get(value));
+        int[] group = ordinalGroups.get(-value - 1);
+        String[] imdbIds = new String[group.length];
+        for (int i = 0; i < group.length; i++) {
+            imdbIds[i] = imdbIdsByOrdinal.get(group[i]);
+        }
+        return List.of(imdbIds);
+    }
+
+    /**
+     * @return the value for a message that has the movies of the given value plus the ordinal
+     */
+    private int withOrdinal(int value, int ordinal) {
+        int[] group = value >= 0 ? new int[]{value} : ordinalGroups.get(-value - 1);
+        for (int existing : group) {
+            if (existing == ordinal) return value;
+        }
+        int[] extended = Arrays.copyOf(group, group.length + 1);
+        extended[group.length] = ordinal;
+        if (value >= 0) {
+            ordinalGroups.add(extended);
+            return -ordinalGroups.size();
+        }
+        ordinalGroups.set(-value - 1, extended);
+        return value;
+    }
+
+    private void resize(int capacity) {
+        long[] newKeys = new long[capacity];
+        int[] newValues = new int[capacity];
+        int mask = capacity - 1;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] == EMPTY_KEY) continue;
+            int newSlot = slotOf(keys[slot], mask);
+            while (newKeys[newSlot] != EMPTY_KEY) {
+                newSlot = (newSlot + 1) & mask;
+            }
+            newKeys[newSlot] = keys[slot];
+            newValues[newSlot] = values[slot];
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private static int slotOf(long messageId, int mask) {
+        // snowflakes are timestamp-prefixed, so mix the bits before masking
+        long hash = messageId * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.jakobheiden;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metric registry, rendered in the Prometheus text format by {@link MetricsServer}.
+ * Look metrics up once and keep the reference; recording on them is allocation-free.
+ */
+public final class Metrics {
+
+    private static final String[] BUCKET_SECONDS = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = Math.round(Double.parseDouble(BUCKET_SECONDS[i]) * 1e9);
+        }
+    }
+
+    private enum Type {HISTOGRAM, COUNTER, GAUGE}
+
+    private record Family(String name, Type type, String help, Map<String, Object> series) {
+    }
+
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static LatencyHistogram latency(String name, String help, String label, String value) {
+        return (LatencyHistogram) family(name, Type.HISTOGRAM, help).series()
+                .computeIfAbsent(labels(label, value), _ -> new LatencyHistogram());
+    }
+
+    public static LongAdder counter(String name, String help, String label, String value) {
+        return (LongAdder) family(name, Type.COUNTER, help).series()
+                .computeIfAbsent(labels(label, value), _ -> new LongAdder());
+    }
+
+    public static void gauge(String name, String help, String label, String value, LongSupplier supplier) {
+        family(name, Type.GAUGE, help).series().put(labels(label, value), supplier);
+    }
+
+    /**
+     * Drops a series, for the metrics of something that was closed.
+     */
+    public static void remove(String name, String label, String value) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.series().remove(labels(label, value));
+        }
+    }
+
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(family.name()).append(' ').append(family.type().name().toLowerCase()).append('\n');
+            family.series().forEach((labels, metric) -> {
+                switch (metric) {
+                    case LatencyHistogram histogram -> appendHistogram(out, family.name(), labels, histogram);
+                    case LongAdder counter -> appendSample(out, family.name(), labels, counter.sum());
+                    case LongSupplier gauge -> appendSample(out, family.name(), labels, gauge.getAsLong());
+                    default -> throw new IllegalStateException("Unknown metric " + metric);
+                }
+            });
+        }
+        return out.toString();
+    }
+
+    private static Family family(String name, Type type, String help) {
+        Family family = families.computeIfAbsent(name, _ -> new Family(name, type, help, new ConcurrentHashMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type());
+        }
+        return family;
+    }
+
+    private static String labels(String label, String value) {
+        return label == null ? "" : label + "=\"" + value + "\"";
+    }
+
+    /**
+     * The histograms count since startup, so they are exported as cumulative buckets and rates and
+     * quantiles over any window are left to the queries.
+     */
+    private static void appendHistogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long[] cumulative = histogram.cumulativeCounts(BUCKET_NANOS);
+        for (int i = 0; i < cumulative.length; i++) {
+            String bound = i < BUCKET_SECONDS.length ? BUCKET_SECONDS[i] : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(bound).append("\"} ")
+                    .append(cumulative[i]).append('\n');
+        }
+        appendSample(out, name + "_sum", labels, seconds(histogram.sumNanos()));
+        // from the buckets rather than the counter, so it always equals the +Inf bucket
+        appendSample(out, name + "_count", labels, cumulative[cumulative.length - 1]);
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.jakobheiden;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link Metrics#scrape()} on http://localhost:&lt;port&gt;/metrics. Only binds to loopback. Its threads
+ * are daemons, so the server never keeps the JVM running once the bot has stopped.
+ */
+public class MetricsServer {
+
+    public static void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(Thread.ofPlatform().name("metrics-server").daemon().factory()));
+        // the dispatcher thread inherits whether it's a daemon from the thread that starts the server
+        Thread starter = Thread.ofPlatform().name("metrics-server-start").daemon().start(server::start);
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.info("serving metrics").with("url", "http://localhost:" + port + "/metrics").log();
+    }
+}
@@ -0,0 +1,328 @@
+package com.github.jakobheiden;
+
+import discord4j.rest.http.client.ClientException;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * One movie channel and everything that belongs to it: its own database, metadata cache, movie lanes
+ * and catch-up. Channels share nothing but the OMDb client and the outbox, so a busy channel doesn't
+ * queue work of the others. Talks to Discord only through {@link DiscordRest}, never the gateway.
+ */
+public class MovieChannel {
+
+    private static final int MOVIE_LANE_COUNT = 16;
+    private static final Map<Class<? extends Command>, LatencyHistogram> HANDLER_LATENCIES = Map.of(
+            Command.AddMovies.class, handlerLatency("add_movies"),
+            Command.SuggestMovies.class, handlerLatency("suggest_movies"),
+            Command.SearchMovies.class, handlerLatency("search_movies"),
+            Command.RestoreSnapshot.class, handlerLatency("restore_snapshot"),
+            Command.AdvanceHighWaterMark.class, handlerLatency("advance_high_water_mark"),
+            Command.Like.class, handlerLatency("like"),
+            Command.Unlike.class, handlerLatency("unlike"),
+            Command.MarkSeen.class, handlerLatency("mark_seen"),
+            Command.MarkNotSeen.class, handlerLatency("mark_not_seen"));
+
+    private final long channelId;
+    private volatile long ownerId;
+    private final MovieRepository movieRepository;
+    private final MovieMetadataCache metadataCache;
+    private final MovieLanes movieLanes;
+    private final DiscordOutbox outbox;
+    private final ChannelCatchUp channelCatchUp;
+    private volatile Snapshots snapshots;
+    private volatile Disposable snapshotSchedule;
+    private final Sinks.One<Boolean> stopped = Sinks.one();
+
+    public MovieChannel(long channelId, long ownerId, MovieRepository movieRepository, OmdbClient omdbClient,
+                        DiscordRest rest, DiscordOutbox outbox) {
+        this.channelId = channelId;
+        this.ownerId = ownerId;
+        this.movieRepository = movieRepository;
+        this.outbox = outbox;
+        metadataCache = new MovieMetadataCache(movieRepository, omdbClient::fetch);
+        movieLanes = new MovieLanes("movie_lanes:" + channelId, MOVIE_LANE_COUNT, this::handleException);
+        channelCatchUp = new ChannelCatchUp(channelId, rest, outbox, movieRepository, metadataCache,
+                this::backfillEyesReactions);
+    }
+
+    private static LatencyHistogram handlerLatency(String command) {
+        return Metrics.latency("dienstag_handler_seconds",
+                "Time from classifying a gateway event until its handler completed", "command", command);
+    }
+
+    /**
+     * Starts reading the history missed while offline. Call once live events are being dispatched.
+     */
+    public void startCatchUp() {
+        channelCatchUp.run()
+                .takeUntilOther(stopped.asMono())
+                .subscribe(null, this::handleException);
+    }
+
+    /**
+     * Takes a snapshot of the channel's database every interval, keeping the newest few in the directory.
+     */
+    public void scheduleSnapshots(Path directory, Duration interval, int keep) {
+        snapshots = new Snapshots(movieRepository, directory, "movies-" + channelId, keep, HANDLER_LATENCIES.values());
+        snapshotSchedule = Flux.interval(interval)
+                .concatMap(_ -> snapshots.take().onErrorResume(this::skipAfterError))
+                .subscribe(null, this::handleException);
+    }
+
+    /**
+     * The owner that errors mention and that may restore snapshots. Changes with reloaded settings.
+     */
+    public void setOwnerId(long ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    /**
+     * Stops the scheduled snapshots, the catch-up and the movie lanes, for a channel that was removed from the
+     * settings. The repository is closed by its owner, once the returned Mono has completed.
+     *
+     * @return completes when the work queued in the movie lanes has run
+     */
+    public Mono<Void> stop() {
+        Disposable schedule = snapshotSchedule;
+        if (schedule != null) {
+            schedule.dispose();
+        }
+        stopped.tryEmitValue(true);
+        return movieLanes.close();
+    }
+
+    public void dispatch(Command command) {
+        LatencyHistogram latency = HANDLER_LATENCIES.get(command.getClass());
+        long receivedAt = System.nanoTime();
+        // deferred, so a handler that throws while assembling its work fails that work instead of the caller
+        Mono<Void> work = Mono.defer(() -> handle(command)).doFinally(_ -> latency.recordSince(receivedAt));
+        if (command instanceof Command.MovieCommand movieCommand) {
+            movieLanes.submit(movieCommand.imdbId(), work);
+        } else {
+            work.subscribe(null, this::handleException);
+        }
+    }
+
+    private Mono<Void> handle(Command command) {
+        return switch (command) {
+            case Command.AddMovies addMovies -> addMovies(addMovies.messageId(), addMovies.authorId(), addMovies.imdbIds());
+            case Command.SuggestMovies suggestMovies -> suggestMovies.isRanked()
+                    ? suggestRankedMovies(suggestMovies.mentionedUserIds())
+                    : suggestMovies(suggestMovies.mentionedUserIds());
+            case Command.SearchMovies searchMovies -> searchMovies(searchMovies.text());
+            case Command.RestoreSnapshot restore -> restoreSnapshot(restore.authorId(), restore.snapshotName());
+            case Command.AdvanceHighWaterMark advance -> channelCatchUp.advance(advance.messageId());
+            case Command.Like like -> Mono.fromRunnable(() -> movieRepository.persistLike(like.userId(), like.imdbId()));
+            case Command.Unlike unlike -> Mono.fromRunnable(() -> movieRepository.deleteLike(unlike.imdbId(), unlike.userId()));
+            case Command.MarkSeen markSeen -> handleMarkMovieAsSeenReaction(markSeen.imdbId());
+            case Command.MarkNotSeen markNotSeen -> handleMarkMovieAsNotSeenReaction(markNotSeen.imdbId());
+        };
+    }
+
+    /**
+     * Resolves all movies of the message concurrently and stores them in one go. Movies that can't be resolved
+     * are reported and left out.
+     */
+    private Mono<Void> addMovies(long messageId, long authorId, List<String> imdbIds) {
+        // handle() runs as the command is dispatched, so later messages can't move the mark past this one
+        channelCatchUp.begin(messageId);
+        return Flux.fromIterable(imdbIds)
+                .flatMapSequential(imdbId -> metadataCache.get(imdbId)
+                        .map(metadata -> Map.entry(imdbId, metadata))
+                        .onErrorResume(e -> outbox.createMessage(channelId, "Failed to extract title of " + imdbId + " from OMDB API: "
+                                        + e.getMessage() + "\nMovie not persisted in database.", DiscordOutbox.Priority.REPLY)
+                                .then(Mono.empty())))
+                .collect(LinkedHashMap<String, MovieMetadata>::new, (movies, movie) -> movies.put(movie.getKey(), movie.getValue()))
+                .filter(movies -> !movies.isEmpty())
+                .flatMap(movies -> movieRepository.persistMovieMessage(messageId, authorId, movies)
+                        .doOnNext(newImdbIds -> {
+                            movies.forEach((imdbId, metadata) -> {
+                                if (newImdbIds.contains(imdbId)) {
+                                    Log.info("persisted movie").with("imdb_id", imdbId).with("title", metadata.title()).with("user", authorId).log();
+                                } else {
+                                    Log.info("movie already in database").with("imdb_id", imdbId).with("title", metadata.title()).log();
+                                }
+                            });
+                            if (Log.isEnabled(Log.Level.DEBUG)) {
+                                Log.debug("OMDb cache").with("stats", metadataCache.stats()).log();
+                            }
+                        }))
+                .flatMap(_ -> outbox.addReaction(channelId, messageId, App.thumbsUpEmoji.getRaw(), DiscordOutbox.Priority.REPLY))
+                .then(channelCatchUp.finish(messageId));
+    }
+
+    private Mono<Void> suggestMovies(List<Long> mentionedUserIds) {
+        return movieRepository.fetchMovieSuggestions(mentionedUserIds)
+                .flatMap(movieSuggestions -> {
+                    if (movieSuggestions.maxTaggedLikeCount() == 0) {
+                        Log.info("no movies to suggest").with("channel", channelId).log();
+                        return outbox.createMessage(channelId, "No movies to suggest", DiscordOutbox.Priority.REPLY)
+                                .then();
+                    }
+
+                    Log.info("suggesting movies").with("channel", channelId).with("titles", movieSuggestions.titles().size()).log();
+
+                    // every suggestion gets its own message, so it can be reacted to on its own
+                    return Flux.range(0, movieSuggestions.titles().size())
+                            .flatMap(i -> sendSuggestion(movieSuggestions, i)
+                                    .onErrorResume(this::skipAfterError))
+                            .then();
+                });
+    }
+
+    private Mono<Void> suggestRankedMovies(List<Long> mentionedUserIds) {
+        return movieRepository.fetchRankedSuggestions(mentionedUserIds)
+                .flatMap(suggestions -> {
+                    if (suggestions.isEmpty()) {
+                        Log.info("no movies to suggest").with("channel", channelId).log();
+                        return outbox.createMessage(channelId, "No movies to suggest", DiscordOutbox.Priority.REPLY)
+                                .then();
+                    }
+
+                    Log.info("suggesting ranked movies").with("channel", channelId).with("titles", suggestions.size()).log();
+
+                    return Flux.fromIterable(suggestions)
+                            .flatMap(suggestion -> sendSuggestion(suggestion.imdbId(), suggestion.taggedLikeCount(),
+                                    suggestion.allLikeCount(), suggestion.title(), suggestion.year())
+                                    .onErrorResume(this::skipAfterError))
+                            .then();
+                });
+    }
+
+    private Mono<Void> sendSuggestion(MovieRepository.MovieSuggestions movieSuggestions, int i) {
+        return sendSuggestion(movieSuggestions.imdbIds().get(i), movieSuggestions.maxTaggedLikeCount(),
+                movieSuggestions.allLikeCounts().get(i), movieSuggestions.titles().get(i), movieSuggestions.years().get(i));
+    }
+
+    private Mono<Void> sendSuggestion(String imdbId, int taggedLikeCount, int allLikeCount, String title, String year) {
+        String content = String.format("%d/%d %s%s", taggedLikeCount,
+                allLikeCount,
+                title,
+                year != null ? " (" + year + ")" : "");
+        return outbox.createMessage(channelId, content, DiscordOutbox.Priority.REPLY)
+                .flatMap(messageId -> movieRepository.persistMessage(messageId, imdbId)
+                        .doOnSuccess(_ -> Log.info("persisted movie message").with("message", messageId).with("imdb_id", imdbId).log()));
+    }
+
+    /**
+     * Answers with one message listing the matches. The text isn't echoed back, so it can't smuggle in mentions.
+     */
+    private Mono<Void> searchMovies(String text) {
+        return movieRepository.searchMovies(text)
+                .flatMap(results -> {
+                    Log.info("search finished").with("channel", channelId).with("titles", results.size()).log();
+                    if (results.isEmpty()) {
+                        return outbox.createMessage(channelId, "No movies found", DiscordOutbox.Priority.REPLY)
+                                .then();
+                    }
+
+                    String content = results.stream()
+                            .map(result -> String.format("%s%s · %s %d%s", result.title(),
+                                    result.year() != null ? " (" + result.year() + ")" : "",
+                                    App.thumbsUpEmoji.getRaw(), result.likeCount(),
+                                    result.hasBeenWatched() ? " · " + App.eyesEmoji.getRaw() : ""))
+                            .collect(Collectors.joining("\n"));
+                    return outbox.createMessage(channelId, content, DiscordOutbox.Priority.REPLY).then();
+                });
+    }
+
+    /**
+     * Restores the snapshot, then catches up on what was posted since it was taken. Reactions changed since on
+     * messages the snapshot already had are not recovered, see {@link MovieRepository#restore}.
+     */
+    private Mono<Void> restoreSnapshot(long authorId, String snapshotName) {
+        if (authorId != ownerId) {
+            return outbox.createMessage(channelId, "Only the channel owner can restore snapshots", DiscordOutbox.Priority.REPLY)
+                    .then();
+        }
+        Snapshots channelSnapshots = snapshots;
+        if (channelSnapshots == null) {
+            return outbox.createMessage(channelId, "Snapshots are disabled", DiscordOutbox.Priority.REPLY).then();
+        }
+        Path snapshot = channelSnapshots.resolve(snapshotName);
+        if (snapshot == null) {
+            return outbox.createMessage(channelId, "No such snapshot", DiscordOutbox.Priority.REPLY).then();
+        }
+
+        return channelSnapshots.restore(snapshot)
+                .then(outbox.createMessage(channelId, "Restored " + snapshot.getFileName()
+                        + ", catching up on the channel since. Reactions changed since on older messages are not recovered.",
+                        DiscordOutbox.Priority.REPLY))
+                .doOnSuccess(_ -> startCatchUp())
+                .then();
+    }
+
+    private Mono<Void> handleMarkMovieAsSeenReaction(String imdbId) {
+        return movieRepository.markMovieAsSeen(imdbId)
+                .flatMap(isAlreadyMarkedAsSeen -> {
+                    if (isAlreadyMarkedAsSeen) {
+                        Log.info("movie already marked as seen").with("imdb_id", imdbId).log();
+                        return Mono.empty();
+                    }
+
+                    Log.info("movie marked as seen").with("imdb_id", imdbId).log();
+
+                    backfillEyesReactions(imdbId, true);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> handleMarkMovieAsNotSeenReaction(String imdbId) {
+        return movieRepository.markMovieAsNotSeen(imdbId)
+                .flatMap(isAlreadyMarkedAsNotSeen -> {
+                    if (isAlreadyMarkedAsNotSeen) {
+                        Log.info("movie already marked as not seen").with("imdb_id", imdbId).log();
+                        return Mono.empty();
+                    }
+
+                    Log.info("movie marked as not seen").with("imdb_id", imdbId).log();
+
+                    backfillEyesReactions(imdbId, false);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Adds or removes the bot's 👀 on every message of the movie. This runs detached from the movie's lane;
+     * the outbox drops a pending add when a remove for the same message follows, and vice versa.
+     */
+    private void backfillEyesReactions(String imdbId, boolean hasBeenWatched) {
+        movieRepository.fetchMessageIds(imdbId)
+                .flatMap(messageId -> (hasBeenWatched
+                        ? outbox.addReaction(channelId, messageId, App.eyesEmoji.getRaw(), DiscordOutbox.Priority.BACKFILL)
+                        : outbox.removeOwnReaction(channelId, messageId, App.eyesEmoji.getRaw(), DiscordOutbox.Priority.BACKFILL))
+                        .onErrorResume(this::skipAfterError))
+                .subscribe(null, this::handleException);
+    }
+
+    /**
+     * Reports the error and completes empty, so one failed event doesn't terminate its handler pipeline.
+     */
+    private <T> Mono<T> skipAfterError(Throwable throwable) {
+        handleException(throwable);
+        return Mono.empty();
+    }
+
+    public void handleException(Throwable throwable) {
+        String errorMessage = throwable.getMessage();
+        Log.error("handler failed").with("channel", channelId).with("error", throwable).log();
+
+        if (throwable instanceof ClientException) {
+            if (((ClientException) throwable).getStatus().equals(HttpResponseStatus.NOT_FOUND))
+                return;
+        }
+
+        outbox.sendNotice(channelId, "⚠️ Error: " + errorMessage + " " + String.format("<@%d>", ownerId));
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.jakobheiden;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Ordered worker lanes keyed by IMDb id. Work for the same movie runs one at a time in submission
+ * order, while different movies are spread across lanes and run in parallel.
+ */
+public class MovieLanes {
+
+    private final String name;
+    private final List<Sinks.Many<Mono<Void>>> lanes;
+    private final List<Mono<Void>> drained;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param name identifies the lanes in the queue depth gauge
+     */
+    public MovieLanes(String name, int laneCount, Consumer<Throwable> errorHandler) {
+        this.name = name;
+        lanes = new ArrayList<>(laneCount);
+        drained = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            Sinks.Many<Mono<Void>> lane = Sinks.many().unicast().onBackpressureBuffer();
+            Sinks.Empty<Void> laneDrained = Sinks.empty();
+            lane.asFlux()
+                    .concatMap(work -> work
+                            .onErrorResume(e -> {
+                                errorHandler.accept(e);
+                                return Mono.empty();
+                            })
+                            .doFinally(_ -> queued.decrementAndGet()))
+                    .doFinally(_ -> laneDrained.tryEmitEmpty())
+                    .subscribe();
+            lanes.add(lane);
+            drained.add(laneDrained.asMono());
+        }
+        Metrics.gauge("dienstag_queue_depth", "Items waiting in internal queues", "queue", name, queued::get);
+    }
+
+    public void submit(String imdbId, Mono<Void> work) {
+        queued.incrementAndGet();
+        lanes.get(Math.floorMod(imdbId.hashCode(), lanes.size()))
+                .emitNext(work, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+    }
+
+    /**
+     * Ends the lanes once the queued work has run, and drops their gauge. Work submitted afterwards is dropped.
+     *
+     * @return completes when the queued work has run
+     */
+    public Mono<Void> close() {
+        for (Sinks.Many<Mono<Void>> lane : lanes) {
+            lane.emitComplete(Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+        }
+        Metrics.remove("dienstag_queue_depth", "queue", name);
+        return Mono.when(drained);
+    }
+}
@@ -0,0 +1,4 @@
+package com.github.jakobheiden;
+
+public record MovieMetadata(String title, String year) {
+}
@@ -0,0 +1,111 @@
+package com.github.jakobheiden;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Two-tier cache for OMDb metadata: an in-memory LRU in front of the omdb_cache table.
+ * Stale entries are served immediately and refreshed in the background.
+ */
+public class MovieMetadataCache {
+
+    private static final int MAX_MEMORY_ENTRIES = 1024;
+    private static final Duration TTL = Duration.ofDays(30);
+    private static final LongAdder MEMORY_HITS = lookupCounter("memory_hit");
+    private static final LongAdder REPOSITORY_HITS = lookupCounter("database_hit");
+    private static final LongAdder MISSES = lookupCounter("miss");
+    private static final LongAdder STALE_REFRESHES = Metrics.counter("dienstag_omdb_cache_stale_refreshes_total",
+            "Stale OMDb cache entries that were served and refreshed in the background", null, null);
+
+    private record Entry(MovieMetadata metadata, long fetchedAt) {
+        boolean isStale() {
+            return System.currentTimeMillis() - fetchedAt > TTL.toMillis();
+        }
+    }
+
+    private final MovieRepository movieRepository;
+    private final Function<String, Mono<MovieMetadata>> fetcher;
+    private final Map<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    };
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    public MovieMetadataCache(MovieRepository movieRepository, Function<String, Mono<MovieMetadata>> fetcher) {
+        this.movieRepository = movieRepository;
+        this.fetcher = fetcher;
+    }
+
+    private static LongAdder lookupCounter(String result) {
+        return Metrics.counter("dienstag_omdb_cache_lookups_total", "OMDb metadata cache lookups, by result", "result", result);
+    }
+
+    public Mono<MovieMetadata> get(String imdbId) {
+        return Mono.defer(() -> {
+            Entry entry;
+            synchronized (memory) {
+                entry = memory.get(imdbId);
+            }
+            if (entry != null) {
+                MEMORY_HITS.increment();
+                refreshIfStale(imdbId, entry);
+                return Mono.just(entry.metadata());
+            }
+
+            return movieRepository.fetchCachedMetadata(imdbId)
+                    .map(cached -> {
+                        REPOSITORY_HITS.increment();
+                        Entry repositoryEntry = new Entry(cached.metadata(), cached.fetchedAt());
+                        remember(imdbId, repositoryEntry);
+                        refreshIfStale(imdbId, repositoryEntry);
+                        return repositoryEntry.metadata();
+                    })
+                    .switchIfEmpty(Mono.defer(() -> {
+                        MISSES.increment();
+                        return fetchAndStore(imdbId);
+                    }));
+        });
+    }
+
+    /**
+     * Counted across all channels, like the exported metrics.
+     */
+    public String stats() {
+        return String.format("memory hits %d, db hits %d, misses %d, stale refreshes %d",
+                MEMORY_HITS.sum(), REPOSITORY_HITS.sum(), MISSES.sum(), STALE_REFRESHES.sum());
+    }
+
+    private Mono<MovieMetadata> fetchAndStore(String imdbId) {
+        return fetcher.apply(imdbId)
+                .flatMap(metadata -> {
+                    long fetchedAt = System.currentTimeMillis();
+                    remember(imdbId, new Entry(metadata, fetchedAt));
+                    return movieRepository.persistCachedMetadata(imdbId, metadata, fetchedAt)
+                            .thenReturn(metadata);
+                });
+    }
+
+    private void remember(String imdbId, Entry entry) {
+        synchronized (memory) {
+            memory.put(imdbId, entry);
+        }
+    }
+
+    private void refreshIfStale(String imdbId, Entry entry) {
+        if (!entry.isStale() || !refreshing.add(imdbId)) return;
+
+        STALE_REFRESHES.increment();
+        fetchAndStore(imdbId)
+                .doFinally(_ -> refreshing.remove(imdbId))
+                .subscribe(null, e -> Log.warn("failed to refresh OMDb metadata").with("imdb_id", imdbId).with("error", e).log());
+    }
+}
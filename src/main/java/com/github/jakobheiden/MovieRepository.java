@@ -1,102 +1,306 @@
 package com.github.jakobheiden;
 
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
 import java.sql.*;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MovieRepository {
 
-    private static Connection dbConnection;
+    private static final LatencyHistogram INIT_SCHEMA = repositoryLatency("init_schema");
+    private static final LatencyHistogram FETCH_CACHED_METADATA = repositoryLatency("fetch_cached_metadata");
+    private static final LatencyHistogram PERSIST_CACHED_METADATA = repositoryLatency("persist_cached_metadata");
+    private static final LatencyHistogram PERSIST_MOVIE_MESSAGE = repositoryLatency("persist_movie_message");
+    private static final LatencyHistogram PERSIST_MESSAGE = repositoryLatency("persist_message");
+    private static final LatencyHistogram FETCH_MOVIE_SUGGESTIONS = repositoryLatency("fetch_movie_suggestions");
+    private static final LatencyHistogram FETCH_RANKED_SUGGESTIONS = repositoryLatency("fetch_ranked_suggestions");
+    private static final LatencyHistogram SEARCH_MOVIES = repositoryLatency("search_movies");
+    private static final LatencyHistogram FETCH_IMDB_IDS_FROM_MESSAGE_ID = repositoryLatency("fetch_imdb_ids_from_message_id");
+    private static final LatencyHistogram FLUSH_LIKES = repositoryLatency("flush_likes");
+    private static final LatencyHistogram PERSIST_LIKE = repositoryLatency("persist_like");
+    private static final LatencyHistogram DELETE_LIKE = repositoryLatency("delete_like");
+    private static final LatencyHistogram MARK_MOVIE_AS_SEEN = repositoryLatency("mark_movie_as_seen");
+    private static final LatencyHistogram MARK_MOVIE_AS_NOT_SEEN = repositoryLatency("mark_movie_as_not_seen");
+    private static final LatencyHistogram FETCH_MESSAGE_IDS = repositoryLatency("fetch_message_ids");
+    private static final LatencyHistogram FETCH_HIGH_WATER_MARK = repositoryLatency("fetch_high_water_mark");
+    private static final LatencyHistogram ADVANCE_HIGH_WATER_MARK = repositoryLatency("advance_high_water_mark");
+    private static final LatencyHistogram APPLY_CATCH_UP_PAGE = repositoryLatency("apply_catch_up_page");
+    private static final LatencyHistogram SNAPSHOT = repositoryLatency("snapshot");
+    private static final LatencyHistogram RESTORE = repositoryLatency("restore");
+    private static final String ADVANCE_HIGH_WATER_MARK_SQL = """
+            INSERT INTO sync_state (channel_id, last_message_id) VALUES (?, ?)
+            ON CONFLICT (channel_id) DO UPDATE SET last_message_id = MAX(last_message_id, excluded.last_message_id)
+            """;
+    static final String INSERT_MOVIE_SQL = "INSERT OR IGNORE INTO movies (imdb_id, title, year) VALUES (?, ?, ?)";
+    static final String INSERT_MESSAGE_SQL = "INSERT OR IGNORE INTO messages (message_id, imdb_id) VALUES (?, ?)";
+    // for likes read from Discord, which keep the time of a like that is stored already
+    static final String INSERT_LIKE_SQL = "INSERT OR IGNORE INTO likes (imdb_id, user_id, liked_at) VALUES (?, ?, ?)";
+    // for journaled likes, whose time the suggestion engine decided; a re-like after a coalesced unlike moves it
+    static final String UPSERT_LIKE_SQL = """
+            INSERT INTO likes (imdb_id, user_id, liked_at) VALUES (?, ?, ?)
+            ON CONFLICT (imdb_id, user_id) DO UPDATE SET liked_at = excluded.liked_at WHERE liked_at <> excluded.liked_at
+            """;
+    static final String DELETE_LIKE_SQL = "DELETE FROM likes WHERE imdb_id = ? AND user_id = ?";
+    private static final String SELECT_MESSAGE_IDS_SQL = "SELECT message_id FROM messages WHERE imdb_id = ?";
+    private static final Map<Integer, String> SUGGESTION_SQL = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> RANKED_SUGGESTION_SQL = new ConcurrentHashMap<>();
+    private static final int MAX_RANKED_SUGGESTIONS = 5;
+    private static final int MAX_SEARCH_RESULTS = 10;
+    private static final Pattern SEARCH_TOKEN_PATTERN = Pattern.compile("[\\p{L}\\p{N}]+");
+    // bm25 ranks are ordered by the index itself, and each like count is one primary key range
+    private static final String SEARCH_MOVIES_SQL = """
+            SELECT m.imdb_id, m.title, m.year, m.has_been_watched,
+                   (SELECT COUNT(*) FROM likes l WHERE l.imdb_id = m.imdb_id) AS like_count
+            FROM movie_titles
+            JOIN movies m ON m.id = movie_titles.rowid
+            WHERE movie_titles MATCH ?
+            ORDER BY rank
+            LIMIT ?
+            """;
 
-    public MovieRepository() throws SQLException {
-        dbConnection = DriverManager.getConnection("jdbc:sqlite:data/movies.db");
+    private final Database database;
+    // replaced as a whole on restore
+    private volatile MessageIndex messageIndex = new MessageIndex();
+    private final LikeJournal likeJournal;
+    private volatile SuggestionEngine suggestionEngine = new SuggestionEngine();
+    // likes and unlikes update the suggestion engine outside the writer connection, so a restore shuts them out here
+    private final ReadWriteLock restoreLock = new ReentrantReadWriteLock();
+    private final SuggestionCache suggestionCache = new SuggestionCache();
+    // every live like and unlike takes a sequence number; while a catch-up runs, the last one per pair is kept
+    private final AtomicLong liveLikeChangeSequence = new AtomicLong();
+    private final Map<LikeRow, Long> liveLikeChanges = new ConcurrentHashMap<>();
+    private volatile boolean isCatchUpRunning;
+    private final boolean useSqlSuggestions;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                dbConnection.close();
-            } catch (SQLException _) {
-            }
-        }));
+    public MovieRepository(String databasePath, boolean useSqlSuggestions) throws SQLException {
+        this.useSqlSuggestions = useSqlSuggestions;
+        database = new Database("jdbc:sqlite:" + databasePath);
+        likeJournal = new LikeJournal(database, "like_journal:" + Path.of(databasePath).getFileName());
     }
 
-    public void initSchema() throws SQLException {
-        try (Statement stmt = dbConnection.createStatement()) {
-            stmt.execute("""
-                    CREATE TABLE IF NOT EXISTS movies (
-                        imdb_id TEXT PRIMARY KEY,
-                        title TEXT,
-                        year TEXT,
-                        has_been_watched BOOLEAN DEFAULT 0
-                    )
-                    """);
-
-            stmt.execute("""
-                    CREATE TABLE IF NOT EXISTS messages (
-                        message_id TEXT PRIMARY KEY,
-                        imdb_id TEXT,
-                        FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
-                    )
-                    """);
-
-            stmt.execute("""
-                    CREATE TABLE IF NOT EXISTS likes (
-                        imdb_id TEXT,
-                        user_id TEXT,
-                        PRIMARY KEY (imdb_id, user_id),
-                        FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
-                    )
-                    """);
+    private static LatencyHistogram repositoryLatency(String operation) {
+        return Metrics.latency("dienstag_repository_seconds", "Latency of MovieRepository calls", "operation", operation);
+    }
+
+    /**
+     * Flushes queued likes, then closes the cached statements and all connections. Safe to call more than once.
+     */
+    public void close() {
+        if (!isClosed.compareAndSet(false, true)) return;
+        try {
+            likeJournal.close();
+        } catch (SQLException e) {
+            Log.error("failed to flush likes on shutdown").with("error", e).log();
         }
+        database.close();
+    }
+
+    public Mono<Void> initSchema() {
+        return database.write(INIT_SCHEMA, connection -> {
+            SchemaMigrations.migrate(connection);
+            loadIndexes(connection);
+            return null;
+        });
     }
 
-    public boolean persistMovie(String imdbId, String title, String year) throws SQLException {
-        String movieSql = "INSERT OR IGNORE INTO movies (imdb_id, title, year) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = dbConnection.prepareStatement(movieSql)) {
-            stmt.setString(1, imdbId);
-            stmt.setString(2, title);
-            stmt.setString(3, year);
-            int rowsAffected = stmt.executeUpdate();
-            return rowsAffected == 0;
+    private void loadIndexes(Connection connection) throws SQLException {
+        MessageIndex loadedMessageIndex = new MessageIndex();
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT message_id, imdb_id FROM messages")) {
+            while (resultSet.next()) {
+                loadedMessageIndex.put(resultSet.getLong("message_id"), resultSet.getString("imdb_id"));
+            }
         }
+        Log.info("loaded message index").with("messages", loadedMessageIndex.size()).log();
+        SuggestionEngine loadedSuggestionEngine = new SuggestionEngine();
+        loadedSuggestionEngine.load(connection);
+
+        messageIndex = loadedMessageIndex;
+        suggestionEngine = loadedSuggestionEngine;
+        suggestionCache.invalidate();
+    }
+
+    /**
+     * Copies the database to a new file while it stays in use, see {@link Database#snapshot}. Runs on a reader
+     * connection, so writes aren't held up.
+     */
+    public Mono<Void> snapshot(Path destination) {
+        return database.read(SNAPSHOT, connection -> {
+            Database.snapshot(connection, destination.toString());
+            return null;
+        });
+    }
+
+    /**
+     * Replaces the database with a snapshot, migrates it if it is older, and reloads the in-memory indexes.
+     * Everything written since the snapshot is gone, including queued likes. A channel catch-up replays the
+     * messages posted after the snapshot's high-water mark, but not 👍, 👀 or 🔄 added to or removed from older
+     * messages since; those changes stay lost.
+     */
+    public Mono<Void> restore(Path snapshot) {
+        return database.write(RESTORE, connection -> {
+            restoreLock.writeLock().lock();
+            try {
+                likeJournal.flush();
+                Database.restore(connection, snapshot.toString());
+                SchemaMigrations.migrate(connection);
+                loadIndexes(connection);
+                return null;
+            } finally {
+                restoreLock.writeLock().unlock();
+            }
+        });
     }
 
-    public void persistMessage(String messageId, String imdbId) throws SQLException {
-        String messageSql = "INSERT INTO messages (message_id, imdb_id) VALUES (?, ?)";
-        try (PreparedStatement stmt = dbConnection.prepareStatement(messageSql)) {
-            stmt.setString(1, messageId);
+    public record CachedMetadata(MovieMetadata metadata, long fetchedAt) {}
+
+    public Mono<CachedMetadata> fetchCachedMetadata(String imdbId) {
+        return database.read(FETCH_CACHED_METADATA, connection -> {
+            String selectSql = "SELECT title, year, fetched_at FROM omdb_cache WHERE imdb_id = ?";
+            PreparedStatement preparedStatement = database.prepare(connection, selectSql);
+            preparedStatement.setString(1, imdbId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                MovieMetadata metadata = new MovieMetadata(resultSet.getString("title"), resultSet.getString("year"));
+                return new CachedMetadata(metadata, resultSet.getLong("fetched_at"));
+            }
+        });
+    }
+
+    public Mono<Void> persistCachedMetadata(String imdbId, MovieMetadata metadata, long fetchedAt) {
+        return database.write(PERSIST_CACHED_METADATA, connection -> {
+            String upsertSql = "INSERT OR REPLACE INTO omdb_cache (imdb_id, title, year, fetched_at) VALUES (?, ?, ?, ?)";
+            PreparedStatement preparedStatement = database.prepare(connection, upsertSql);
+            preparedStatement.setString(1, imdbId);
+            preparedStatement.setString(2, metadata.title());
+            preparedStatement.setString(3, metadata.year());
+            preparedStatement.setLong(4, fetchedAt);
+            preparedStatement.executeUpdate();
+            return null;
+        });
+    }
+
+    /**
+     * Stores the movies of a posted message, the message itself and the author's like of each movie in
+     * one transaction.
+     *
+     * @param movies the metadata of each movie, by IMDb id, in the order they were linked
+     * @return the IMDb ids of the movies that weren't in the database yet
+     */
+    public Mono<Set<String>> persistMovieMessage(long messageId, long authorId, Map<String, MovieMetadata> movies) {
+        return database.write(PERSIST_MOVIE_MESSAGE, _ -> {
+            // queued likes and unlikes happened before this message, so they're written first
+            likeJournal.flush();
+            long now = Instant.now().getEpochSecond();
+
+            Set<String> newImdbIds = database.transactionBlocking(connection -> {
+                PreparedStatement insertMovie = database.prepare(connection, INSERT_MOVIE_SQL);
+                PreparedStatement insertMessage = database.prepare(connection, INSERT_MESSAGE_SQL);
+                PreparedStatement insertLike = database.prepare(connection, INSERT_LIKE_SQL);
+                for (Map.Entry<String, MovieMetadata> movie : movies.entrySet()) {
+                    insertMovie.setString(1, movie.getKey());
+                    insertMovie.setString(2, movie.getValue().title());
+                    insertMovie.setString(3, movie.getValue().year());
+                    insertMovie.addBatch();
+                    insertMessage.setLong(1, messageId);
+                    insertMessage.setString(2, movie.getKey());
+                    insertMessage.addBatch();
+                    addLikeRow(insertLike, movie.getKey(), authorId, now);
+                }
+                int[] movieResults = insertMovie.executeBatch();
+                insertMessage.executeBatch();
+                insertLike.executeBatch();
+
+                Set<String> inserted = new LinkedHashSet<>();
+                int i = 0;
+                for (String imdbId : movies.keySet()) {
+                    if (movieResults[i++] > 0) {
+                        inserted.add(imdbId);
+                    }
+                }
+                return inserted;
+            });
+
+            movies.forEach((imdbId, metadata) -> {
+                suggestionEngine.movieAdded(imdbId, metadata.title(), metadata.year());
+                suggestionEngine.liked(authorId, imdbId, now);
+                messageIndex.put(messageId, imdbId);
+            });
+            suggestionCache.invalidate();
+            return newImdbIds;
+        });
+    }
+
+    public Mono<Void> persistMessage(long messageId, String imdbId) {
+        return database.write(PERSIST_MESSAGE, connection -> {
+            // the channel catch-up may have stored the message already
+            PreparedStatement stmt = database.prepare(connection, INSERT_MESSAGE_SQL);
+            stmt.setLong(1, messageId);
             stmt.setString(2, imdbId);
             stmt.executeUpdate();
-        }
+            messageIndex.put(messageId, imdbId);
+            return null;
+        });
     }
 
     public record MovieSuggestions(int maxTaggedLikeCount, List<Integer> allLikeCounts, List<String> imdbIds, List<String> titles,
                                    List<String> years) {}
 
-    public MovieSuggestions fetchMovieSuggestions(List<String> mentionedUserIds) throws SQLException {
-        String placeholders = String.join(",", mentionedUserIds.stream().map(id -> "?").toList());
-        String sql = """
-                SELECT\s
-                    m.imdb_id,\s
-                    m.title,\s
-                    m.year,
-                    COUNT(CASE WHEN l.user_id IN (%s) THEN 1 END) as tagged_like_count,
-                    COUNT(l.user_id) as all_like_count
-                FROM movies m
-                JOIN likes l ON m.imdb_id = l.imdb_id
-                WHERE m.has_been_watched = 0
-                GROUP BY m.imdb_id
-                HAVING tagged_like_count > 0
-                ORDER BY tagged_like_count DESC, all_like_count ASC
-            """.formatted(placeholders);
-
-        try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
-            for (int i = 0; i < mentionedUserIds.size(); i++) {
-                stmt.setString(i + 1, mentionedUserIds.get(i));
+    public Mono<MovieSuggestions> fetchMovieSuggestions(List<Long> mentionedUserIds) {
+        return Mono.defer(() -> {
+            List<Long> key = SuggestionCache.key(mentionedUserIds);
+            MovieSuggestions cached = suggestionCache.get(key);
+            if (cached != null) {
+                return FETCH_MOVIE_SUGGESTIONS.time(Mono.just(cached));
             }
 
-            ResultSet rs = stmt.executeQuery();
+            long version = suggestionCache.version();
+            Mono<MovieSuggestions> suggestions = useSqlSuggestions
+                    ? flushPendingLikes().then(database.read(FETCH_MOVIE_SUGGESTIONS, connection -> querySuggestions(connection, key)))
+                    : FETCH_MOVIE_SUGGESTIONS.time(Mono.fromSupplier(() -> suggestionEngine.suggest(key)));
+            return suggestions.doOnNext(result -> suggestionCache.put(key, version, result));
+        });
+    }
+
+    /**
+     * Makes the next suggestion lookups miss the cache, without writing anything. For benchmarks of the uncached path.
+     */
+    public void invalidateSuggestionCache() {
+        suggestionCache.invalidate();
+    }
+
+    /**
+     * The placeholder count is rounded up to a power of two and the spare placeholders repeat the first
+     * user, so any group of up to n users shares one of log2(n) statements and its plan.
+     */
+    private MovieSuggestions querySuggestions(Connection connection, List<Long> mentionedUserIds) throws SQLException {
+        int arity = Integer.highestOneBit(Math.max(1, mentionedUserIds.size() * 2 - 1));
+        PreparedStatement stmt = database.prepare(connection, suggestionSql(arity));
+        for (int i = 0; i < arity; i++) {
+            stmt.setLong(i + 1, mentionedUserIds.get(i < mentionedUserIds.size() ? i : 0));
+        }
 
+        try (ResultSet rs = stmt.executeQuery()) {
             if (!rs.next()) {
                 return new MovieSuggestions(0, List.of(), List.of(), List.of(), List.of());
             }
@@ -118,77 +322,407 @@ public class MovieRepository {
         }
     }
 
-    public Optional<String> fetchImdbIdFromMessageId(String messageId) throws SQLException {
-        String selectSql = "SELECT imdb_id FROM messages WHERE message_id = ?";
-        try (PreparedStatement preparedStatement = dbConnection.prepareStatement(selectSql)) {
-            preparedStatement.setString(1, messageId);
-            var resultSet = preparedStatement.executeQuery();
-            if (!resultSet.next()) {
-                return Optional.empty();
+    private static String suggestionSql(int arity) {
+        return SUGGESTION_SQL.computeIfAbsent(arity, _ -> """
+                SELECT\s
+                    m.imdb_id,\s
+                    m.title,\s
+                    m.year,
+                    COUNT(CASE WHEN l.user_id IN (%s) THEN 1 END) as tagged_like_count,
+                    COUNT(l.user_id) as all_like_count
+                FROM movies m
+                JOIN likes l ON m.imdb_id = l.imdb_id
+                WHERE m.has_been_watched = 0
+                GROUP BY m.imdb_id
+                HAVING tagged_like_count > 0
+                ORDER BY tagged_like_count DESC, all_like_count ASC, m.imdb_id ASC
+            """.formatted(String.join(",", Collections.nCopies(arity, "?"))));
+    }
+
+    public record RankedSuggestion(String imdbId, String title, String year, int taggedLikeCount, int allLikeCount,
+                                   double score) {}
+
+    /**
+     * The best few unwatched movies by {@link SuggestionEngine#score}, best first, instead of every movie tied
+     * at the highest tagged like count. Not cached, since the scores change as the likes age.
+     */
+    public Mono<List<RankedSuggestion>> fetchRankedSuggestions(List<Long> mentionedUserIds) {
+        return Mono.defer(() -> {
+            List<Long> key = SuggestionCache.key(mentionedUserIds);
+            return useSqlSuggestions
+                    ? flushPendingLikes().then(database.read(FETCH_RANKED_SUGGESTIONS,
+                            connection -> queryRankedSuggestions(connection, key)))
+                    : FETCH_RANKED_SUGGESTIONS.time(Mono.fromSupplier(() -> suggestionEngine.rank(key, MAX_RANKED_SUGGESTIONS)));
+        });
+    }
+
+    /**
+     * Rows are scored as they are read and kept only if they make the top k, so the result set is never
+     * sorted or collected as a whole.
+     */
+    private List<RankedSuggestion> queryRankedSuggestions(Connection connection, List<Long> mentionedUserIds) throws SQLException {
+        int arity = Integer.highestOneBit(Math.max(1, mentionedUserIds.size() * 2 - 1));
+        PreparedStatement stmt = database.prepare(connection, rankedSuggestionSql(arity));
+        for (int i = 0; i < arity; i++) {
+            stmt.setLong(i + 1, mentionedUserIds.get(i < mentionedUserIds.size() ? i : 0));
+        }
+        stmt.setLong(arity + 1, Instant.now().getEpochSecond());
+        stmt.setDouble(arity + 2, SuggestionEngine.RECENCY_HALF_LIFE_SECONDS);
+
+        SuggestionEngine.TopK topK = new SuggestionEngine.TopK(MAX_RANKED_SUGGESTIONS);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                int taggedLikeCount = rs.getInt("tagged_like_count");
+                int allLikeCount = rs.getInt("all_like_count");
+                double score = SuggestionEngine.score(taggedLikeCount, allLikeCount, rs.getDouble("recent_likes"));
+                String imdbId = rs.getString("imdb_id");
+                if (!topK.isCandidate(score, imdbId)) continue;
+                topK.offer(new RankedSuggestion(imdbId, rs.getString("title"), rs.getString("year"), taggedLikeCount,
+                        allLikeCount, score));
             }
-            return Optional.of(resultSet.getString("imdb_id"));
         }
+        return topK.toList();
     }
 
-    public void persistLike(String userId, String imdbId) throws SQLException {
-        String insertSql = "INSERT INTO likes (imdb_id, user_id) VALUES (?, ?)";
-        try (PreparedStatement preparedStatement = dbConnection.prepareStatement(insertSql)) {
-            preparedStatement.setString(1, imdbId);
-            preparedStatement.setString(2, userId);
-            preparedStatement.executeUpdate();
-            IO.println("Like added: user " + userId + " liked movie " + imdbId);
-        } catch (SQLException e) {
-            if (e.getMessage().contains("UNIQUE constraint failed") ||
-                    e.getMessage().contains("PRIMARY KEY")) {
-                IO.println("User " + userId + " already liked movie (duplicate ignored)");
-            } else {
-                throw e;
+    private static String rankedSuggestionSql(int arity) {
+        return RANKED_SUGGESTION_SQL.computeIfAbsent(arity, _ -> """
+                SELECT m.imdb_id, m.title, m.year,
+                       COUNT(CASE WHEN l.user_id IN (%s) THEN 1 END) AS tagged_like_count,
+                       COUNT(*) AS all_like_count,
+                       SUM(pow(0.5, (? - l.liked_at) / ?)) AS recent_likes
+                FROM movies m
+                JOIN likes l ON m.imdb_id = l.imdb_id
+                WHERE m.has_been_watched = 0
+                GROUP BY m.imdb_id
+                HAVING tagged_like_count > 0
+                """.formatted(String.join(",", Collections.nCopies(arity, "?"))));
+    }
+
+    public record SearchResult(String imdbId, String title, String year, int likeCount, boolean hasBeenWatched) {}
+
+    /**
+     * Full-text search over titles and years. Every word of the text matches as a prefix, so "godf 72"
+     * finds The Godfather (1972).
+     *
+     * @return the best matches, best first
+     */
+    public Mono<List<SearchResult>> searchMovies(String text) {
+        String matchQuery = toMatchQuery(text);
+        if (matchQuery.isEmpty()) return Mono.just(List.of());
+        // like counts are part of the results
+        return flushPendingLikes().then(database.read(SEARCH_MOVIES, connection -> {
+            PreparedStatement preparedStatement = database.prepare(connection, SEARCH_MOVIES_SQL);
+            preparedStatement.setString(1, matchQuery);
+            preparedStatement.setInt(2, MAX_SEARCH_RESULTS);
+            List<SearchResult> results = new ArrayList<>();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    results.add(new SearchResult(resultSet.getString("imdb_id"), resultSet.getString("title"),
+                            resultSet.getString("year"), resultSet.getInt("like_count"), resultSet.getBoolean("has_been_watched")));
+                }
             }
+            return results;
+        }));
+    }
+
+    /**
+     * Turns free text into an FTS5 query of quoted prefix terms, so user input can't inject query syntax.
+     */
+    private static String toMatchQuery(String text) {
+        List<String> terms = new ArrayList<>();
+        Matcher matcher = SEARCH_TOKEN_PATTERN.matcher(text);
+        while (matcher.find()) {
+            terms.add("\"" + matcher.group() + "\"*");
         }
+        return String.join(" ", terms);
     }
 
-    public void deleteLike(String imdbId, String userId) throws SQLException {
-        String deleteSql = "DELETE FROM likes WHERE imdb_id = ? AND user_id = ?";
-        int rowsAffected;
-        try (PreparedStatement preparedStatement = dbConnection.prepareStatement(deleteSql)) {
-            preparedStatement.setString(1, imdbId);
-            preparedStatement.setString(2, userId);
-            rowsAffected = preparedStatement.executeUpdate();
+    /**
+     * Served from the in-memory message index, so this never touches the database.
+     *
+     * @return the movies posted in the message, empty if it isn't a movie message
+     */
+    public List<String> fetchImdbIdsFromMessageId(long messageId) {
+        long start = System.nanoTime();
+        List<String> imdbIds = messageIndex.get(messageId);
+        FETCH_IMDB_IDS_FROM_MESSAGE_ID.recordSince(start);
+        return imdbIds;
+    }
+
+    /**
+     * Writes queued likes and unlikes to the database now instead of waiting for the next batch.
+     */
+    public Mono<Void> flushLikes() {
+        return database.write(FLUSH_LIKES, _ -> {
+            likeJournal.flush();
+            return null;
+        });
+    }
+
+    /**
+     * Writes queued likes before a SQL read that counts them. Runs before a reader connection is taken, so
+     * readers never wait for the writer while holding a connection, and costs nothing with an empty journal.
+     */
+    private Mono<Void> flushPendingLikes() {
+        return Mono.defer(() -> likeJournal.pendingOperations() == 0 ? Mono.empty() : flushLikes());
+    }
+
+    public void persistLike(long userId, String imdbId) {
+        long start = System.nanoTime();
+        restoreLock.readLock().lock();
+        try {
+            // the engine keeps the time of an earlier like, and the journal stores the time it kept
+            long likedAt = suggestionEngine.liked(userId, imdbId, Instant.now().getEpochSecond());
+            likeJournal.like(userId, imdbId, likedAt);
+            recordLiveLikeChange(imdbId, userId);
+        } finally {
+            restoreLock.readLock().unlock();
         }
+        suggestionCache.invalidate();
+        PERSIST_LIKE.recordSince(start);
+    }
 
-        if (rowsAffected == 0) {
-            IO.println("No like to remove: user " + userId + " had not liked movie " + imdbId);
-        } else {
-            IO.println("Like removed: user " + userId + " unliked movie " + imdbId);
+    public void deleteLike(String imdbId, long userId) {
+        long start = System.nanoTime();
+        restoreLock.readLock().lock();
+        try {
+            likeJournal.unlike(imdbId, userId);
+            suggestionEngine.unliked(imdbId, userId);
+            recordLiveLikeChange(imdbId, userId);
+        } finally {
+            restoreLock.readLock().unlock();
         }
+        suggestionCache.invalidate();
+        DELETE_LIKE.recordSince(start);
     }
 
-    public boolean markMovieAsSeen(String imdbId) throws SQLException {
-        String updateSql = "UPDATE movies SET has_been_watched = 1 WHERE imdb_id = ? AND has_been_watched = 0";
-        try (PreparedStatement preparedStatement = dbConnection.prepareStatement(updateSql)) {
-            preparedStatement.setString(1, imdbId);
-            return preparedStatement.executeUpdate() == 0;
+    private void recordLiveLikeChange(String imdbId, long userId) {
+        long sequence = liveLikeChangeSequence.incrementAndGet();
+        if (isCatchUpRunning) {
+            liveLikeChanges.put(new LikeRow(imdbId, userId), sequence);
         }
     }
 
-    public boolean markMovieAsNotSeen(String imdbId) throws SQLException {
-        String updateSql = "UPDATE movies SET has_been_watched = 0 WHERE imdb_id = ? AND has_been_watched = 1";
-        try (PreparedStatement preparedStatement = dbConnection.prepareStatement(updateSql)) {
+    /**
+     * Starts keeping track of live likes and unlikes for a channel catch-up. Call before any of its history
+     * is fetched, and {@link #endCatchUp()} once it is over.
+     *
+     * @return the sequence to pass to {@link #applyCatchUpPage}; live changes after it win over the history
+     */
+    public long beginCatchUp() {
+        isCatchUpRunning = true;
+        return liveLikeChangeSequence.get();
+    }
+
+    public void endCatchUp() {
+        isCatchUpRunning = false;
+        liveLikeChanges.clear();
+    }
+
+    public Mono<Boolean> markMovieAsSeen(String imdbId) {
+        return database.write(MARK_MOVIE_AS_SEEN, connection -> {
+            String updateSql = "UPDATE movies SET has_been_watched = 1 WHERE imdb_id = ? AND has_been_watched = 0";
+            PreparedStatement preparedStatement = database.prepare(connection, updateSql);
             preparedStatement.setString(1, imdbId);
-            return preparedStatement.executeUpdate() == 0;
-        }
+            boolean isAlreadyMarkedAsSeen = preparedStatement.executeUpdate() == 0;
+            suggestionEngine.watchedChanged(imdbId, true);
+            suggestionCache.invalidate();
+            return isAlreadyMarkedAsSeen;
+        });
     }
 
-    public List<String> fetchMessageIds(String imdbId) throws SQLException {
-        String findMessagesForMovieSql = "SELECT message_id FROM messages WHERE imdb_id = ?";
-        List<String> messageIds = new ArrayList<>();
-        try (PreparedStatement preparedStatement = dbConnection.prepareStatement(findMessagesForMovieSql)) {
+    public Mono<Boolean> markMovieAsNotSeen(String imdbId) {
+        return database.write(MARK_MOVIE_AS_NOT_SEEN, connection -> {
+            String updateSql = "UPDATE movies SET has_been_watched = 0 WHERE imdb_id = ? AND has_been_watched = 1";
+            PreparedStatement preparedStatement = database.prepare(connection, updateSql);
             preparedStatement.setString(1, imdbId);
-            ResultSet resultSet = preparedStatement.executeQuery();
+            boolean isAlreadyMarkedAsNotSeen = preparedStatement.executeUpdate() == 0;
+            suggestionEngine.watchedChanged(imdbId, false);
+            suggestionCache.invalidate();
+            return isAlreadyMarkedAsNotSeen;
+        });
+    }
+
+    public Flux<Long> fetchMessageIds(String imdbId) {
+        return database.read(FETCH_MESSAGE_IDS, connection -> queryLongs(database.prepare(connection, SELECT_MESSAGE_IDS_SQL), imdbId))
+                .flatMapIterable(messageIds -> messageIds);
+    }
+
+    /**
+     * @return the id of the newest message of the channel that has been handled, or empty if there is none yet
+     */
+    public Mono<Long> fetchHighWaterMark(long channelId) {
+        return database.read(FETCH_HIGH_WATER_MARK, connection -> {
+            String selectSql = "SELECT last_message_id FROM sync_state WHERE channel_id = ?";
+            PreparedStatement preparedStatement = database.prepare(connection, selectSql);
+            preparedStatement.setLong(1, channelId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong("last_message_id") : null;
+            }
+        });
+    }
+
+    /**
+     * Moves the channel's high-water mark to the message, unless it is already past it.
+     */
+    public Mono<Void> advanceHighWaterMark(long channelId, long messageId) {
+        return database.write(ADVANCE_HIGH_WATER_MARK, connection -> {
+            PreparedStatement preparedStatement = database.prepare(connection, ADVANCE_HIGH_WATER_MARK_SQL);
+            preparedStatement.setLong(1, channelId);
+            preparedStatement.setLong(2, messageId);
+            preparedStatement.executeUpdate();
+            return null;
+        });
+    }
+
+    /**
+     * What one page of channel history says about a movie.
+     *
+     * @param metadata        set if the movie may not be in the database yet
+     * @param newMessageIds   messages of the movie that are not stored yet
+     * @param pageMessageIds  all messages of the movie on the page
+     * @param likerIds        users with a 👍 on any of those messages, plus the authors of the links
+     * @param hasBeenWatched  the watched state the reactions ask for, or null to leave it as it is
+     */
+    public record CatchUpMovie(String imdbId, MovieMetadata metadata, List<Long> newMessageIds, Set<Long> pageMessageIds,
+                               Set<Long> likerIds, Boolean hasBeenWatched) {}
+
+    public record CatchUpResult(int moviesAdded, int likesAdded, int likesRemoved, Map<String, Boolean> watchedChanges) {}
+
+    private record LikeRow(String imdbId, long userId) {}
+
+    /**
+     * Applies one page of channel history in a single transaction, together with the new high-water mark.
+     * Missing likes are added. Likes are only removed if every message of the movie is on the page, since
+     * otherwise the 👍 may be on a message that wasn't looked at. Likes changed live after the catch-up began are
+     * left alone, since the page may have been fetched before the change.
+     *
+     * @param catchUpStart the sequence returned by {@link #beginCatchUp()}
+     */
+    public Mono<CatchUpResult> applyCatchUpPage(long channelId, long highWaterMark, List<CatchUpMovie> movies,
+                                                long catchUpStart) {
+        return database.write(APPLY_CATCH_UP_PAGE, _ -> {
+            // written first, so the diff below sees them
+            likeJournal.flush();
+            long now = Instant.now().getEpochSecond();
+
+            List<LikeRow> likesAdded = new ArrayList<>();
+            List<LikeRow> likesRemoved = new ArrayList<>();
+            Map<String, Boolean> watchedChanges = new LinkedHashMap<>();
+            int moviesAdded = database.transactionBlocking(connection -> {
+                int added = insertCatchUpMovies(connection, movies);
+                diffCatchUpLikes(connection, movies, catchUpStart, now, likesAdded, likesRemoved);
+                for (CatchUpMovie movie : movies) {
+                    if (movie.hasBeenWatched() != null && updateWatched(connection, movie.imdbId(), movie.hasBeenWatched())) {
+                        watchedChanges.put(movie.imdbId(), movie.hasBeenWatched());
+                    }
+                }
+                PreparedStatement preparedStatement = database.prepare(connection, ADVANCE_HIGH_WATER_MARK_SQL);
+                preparedStatement.setLong(1, channelId);
+                preparedStatement.setLong(2, highWaterMark);
+                preparedStatement.executeUpdate();
+                return added;
+            });
+
+            for (CatchUpMovie movie : movies) {
+                if (movie.metadata() != null) {
+                    suggestionEngine.movieAdded(movie.imdbId(), movie.metadata().title(), movie.metadata().year());
+                }
+                for (long messageId : movie.newMessageIds()) {
+                    messageIndex.put(messageId, movie.imdbId());
+                }
+            }
+            likesAdded.forEach(like -> suggestionEngine.liked(like.userId(), like.imdbId(), now));
+            likesRemoved.forEach(like -> suggestionEngine.unliked(like.imdbId(), like.userId()));
+            watchedChanges.forEach(suggestionEngine::watchedChanged);
+            suggestionCache.invalidate();
+            return new CatchUpResult(moviesAdded, likesAdded.size(), likesRemoved.size(), watchedChanges);
+        });
+    }
+
+    private int insertCatchUpMovies(Connection connection, List<CatchUpMovie> movies) throws SQLException {
+        PreparedStatement insertMovie = database.prepare(connection, INSERT_MOVIE_SQL);
+        PreparedStatement insertMessage = database.prepare(connection, INSERT_MESSAGE_SQL);
+        for (CatchUpMovie movie : movies) {
+            if (movie.metadata() != null) {
+                insertMovie.setString(1, movie.imdbId());
+                insertMovie.setString(2, movie.metadata().title());
+                insertMovie.setString(3, movie.metadata().year());
+                insertMovie.addBatch();
+            }
+            for (long messageId : movie.newMessageIds()) {
+                insertMessage.setLong(1, messageId);
+                insertMessage.setString(2, movie.imdbId());
+                insertMessage.addBatch();
+            }
+        }
+        int moviesAdded = 0;
+        for (int rowsAffected : insertMovie.executeBatch()) {
+            moviesAdded += rowsAffected;
+        }
+        insertMessage.executeBatch();
+        return moviesAdded;
+    }
+
+    private void diffCatchUpLikes(Connection connection, List<CatchUpMovie> movies, long catchUpStart, long likedAt,
+                                  List<LikeRow> likesAdded, List<LikeRow> likesRemoved) throws SQLException {
+        PreparedStatement selectLikers = database.prepare(connection, "SELECT user_id FROM likes WHERE imdb_id = ?");
+        PreparedStatement selectMessageIds = database.prepare(connection, SELECT_MESSAGE_IDS_SQL);
+        PreparedStatement insertLike = database.prepare(connection, INSERT_LIKE_SQL);
+        PreparedStatement deleteLike = database.prepare(connection, DELETE_LIKE_SQL);
+        for (CatchUpMovie movie : movies) {
+            Set<Long> storedLikerIds = new HashSet<>(queryLongs(selectLikers, movie.imdbId()));
+            for (long userId : movie.likerIds()) {
+                if (storedLikerIds.contains(userId) || isChangedLive(movie.imdbId(), userId, catchUpStart)) continue;
+                addLikeRow(insertLike, movie.imdbId(), userId, likedAt);
+                likesAdded.add(new LikeRow(movie.imdbId(), userId));
+            }
+
+            if (!movie.pageMessageIds().containsAll(queryLongs(selectMessageIds, movie.imdbId()))) continue;
+            for (long userId : storedLikerIds) {
+                if (movie.likerIds().contains(userId) || isChangedLive(movie.imdbId(), userId, catchUpStart)) continue;
+                addLikeRow(deleteLike, movie.imdbId(), userId);
+                likesRemoved.add(new LikeRow(movie.imdbId(), userId));
+            }
+        }
+        insertLike.executeBatch();
+        deleteLike.executeBatch();
+    }
+
+    private boolean isChangedLive(String imdbId, long userId, long catchUpStart) {
+        Long sequence = liveLikeChanges.get(new LikeRow(imdbId, userId));
+        return sequence != null && sequence > catchUpStart;
+    }
+
+    private static List<Long> queryLongs(PreparedStatement preparedStatement, String imdbId) throws SQLException {
+        preparedStatement.setString(1, imdbId);
+        List<Long> values = new ArrayList<>();
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
             while (resultSet.next()) {
-                messageIds.add(resultSet.getString("message_id"));
+                values.add(resultSet.getLong(1));
             }
         }
-        return messageIds;
+        return values;
+    }
+
+    private static void addLikeRow(PreparedStatement preparedStatement, String imdbId, long userId, long likedAt)
+            throws SQLException {
+        preparedStatement.setLong(3, likedAt);
+        addLikeRow(preparedStatement, imdbId, userId);
+    }
+
+    private static void addLikeRow(PreparedStatement preparedStatement, String imdbId, long userId) throws SQLException {
+        preparedStatement.setString(1, imdbId);
+        preparedStatement.setLong(2, userId);
+        preparedStatement.addBatch();
+    }
+
+    private boolean updateWatched(Connection connection, String imdbId, boolean hasBeenWatched) throws SQLException {
+        String updateSql = "UPDATE movies SET has_been_watched = ? WHERE imdb_id = ? AND has_been_watched <> ?";
+        PreparedStatement preparedStatement = database.prepare(connection, updateSql);
+        preparedStatement.setBoolean(1, hasBeenWatched);
+        preparedStatement.setString(2, imdbId);
+        preparedStatement.setBoolean(3, hasBeenWatched);
+        return preparedStatement.executeUpdate() > 0;
     }
 }
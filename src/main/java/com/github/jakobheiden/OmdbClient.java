@@ -0,0 +1,118 @@
+package com.github.jakobheiden;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking OMDb client. Concurrent lookups for the same IMDb id share one request,
+ * and at most {@link #MAX_CONCURRENT_REQUESTS} requests are in flight against OMDb at a time.
+ */
+public class OmdbClient {
+
+    private static final String OMDB_API_URL = "https://www.omdbapi.com/";
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final LatencyHistogram REQUEST_LATENCY = Metrics.latency("dienstag_omdb_request_seconds",
+            "Latency of OMDb requests, excluding time queued behind the concurrency limit", null, null);
+    private static final LongAdder ERRORS = Metrics.counter("dienstag_omdb_errors_total",
+            "Failed OMDb requests", null, null);
+
+    private record PendingRequest(String imdbId, Sinks.One<MovieMetadata> result) {
+    }
+
+    private volatile String apiKey;
+    private final String baseUrl;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    private final Map<String, Mono<MovieMetadata>> inFlight = new ConcurrentHashMap<>();
+    private final Sinks.Many<PendingRequest> pendingRequests = Sinks.many().unicast().onBackpressureBuffer();
+
+    public OmdbClient(String apiKey) {
+        this(apiKey, OMDB_API_URL);
+    }
+
+    /**
+     * @param baseUrl where the OMDb API is served, for pointing the client at a stand-in
+     */
+    public OmdbClient(String apiKey, String baseUrl) {
+        this.apiKey = apiKey;
+        this.baseUrl = baseUrl;
+        pendingRequests.asFlux()
+                .flatMap(this::execute, MAX_CONCURRENT_REQUESTS)
+                .subscribe();
+        Metrics.gauge("dienstag_queue_depth", "Items waiting in internal queues", "queue", "omdb_in_flight", inFlight::size);
+    }
+
+    /**
+     * Used for requests from now on, so a changed key applies without a restart.
+     */
+    public void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    public Mono<MovieMetadata> fetch(String imdbId) {
+        return Mono.defer(() -> inFlight.computeIfAbsent(imdbId, id -> enqueue(id)
+                .doFinally(_ -> inFlight.remove(id))
+                .cache()));
+    }
+
+    private Mono<MovieMetadata> enqueue(String imdbId) {
+        return Mono.defer(() -> {
+            Sinks.One<MovieMetadata> result = Sinks.one();
+            pendingRequests.emitNext(new PendingRequest(imdbId, result),
+                    Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+            return result.asMono();
+        });
+    }
+
+    private Mono<Void> execute(PendingRequest pendingRequest) {
+        return REQUEST_LATENCY.time(send(pendingRequest.imdbId()))
+                .doOnError(_ -> ERRORS.increment())
+                .doOnNext(pendingRequest.result()::tryEmitValue)
+                .doOnError(pendingRequest.result()::tryEmitError)
+                .onErrorResume(_ -> Mono.empty())
+                .then();
+    }
+
+    private Mono<MovieMetadata> send(String imdbId) {
+        String url = String.format("%s?apikey=%s&i=%s", baseUrl, apiKey, imdbId);
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(REQUEST_TIMEOUT)
+                .GET()
+                .build();
+        return Mono.fromFuture(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()))
+                .timeout(REQUEST_TIMEOUT)
+                .flatMap(response -> {
+                    if (response.statusCode() != 200) {
+                        return Mono.error(new IOException("HTTP error: " + response.statusCode()));
+                    }
+                    return Mono.just(parse(response.body()));
+                });
+    }
+
+    private static MovieMetadata parse(String body) {
+        JsonObject json = JsonParser.parseString(body).getAsJsonObject();
+        if (!json.has("Response") || !json.get("Response").getAsString().equals("True")) {
+            String jsonError = json.has("Error") ? json.get("Error").getAsString() : "Could not parse json from response";
+            String error = "OMDb API error: " + jsonError;
+            throw new RuntimeException(error);
+        }
+
+        return new MovieMetadata(json.get("Title").getAsString(), json.get("Year").getAsString());
+    }
+}
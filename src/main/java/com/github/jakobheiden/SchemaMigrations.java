@@ -0,0 +1,238 @@
+package com.github.jakobheiden;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Ordered schema migrations. The applied version is recorded in schema_version, and each migration
+ * runs in its own transaction, so an existing data/movies.db is upgraded in place on startup.
+ */
+public class SchemaMigrations {
+
+    private record Migration(int version, String description, List<String> statements) {
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "baseline schema", List.of(
+                    """
+                    CREATE TABLE IF NOT EXISTS movies (
+                        imdb_id TEXT PRIMARY KEY,
+                        title TEXT,
+                        year TEXT,
+                        has_been_watched BOOLEAN DEFAULT 0
+                    )
+                    """,
+                    """
+                    CREATE TABLE IF NOT EXISTS messages (
+                        message_id TEXT PRIMARY KEY,
+                        imdb_id TEXT,
+                        FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
+                    )
+                    """,
+                    """
+                    CREATE TABLE IF NOT EXISTS likes (
+                        imdb_id TEXT,
+                        user_id TEXT,
+                        PRIMARY KEY (imdb_id, user_id),
+                        FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
+                    )
+                    """,
+                    """
+                    CREATE TABLE IF NOT EXISTS omdb_cache (
+                        imdb_id TEXT PRIMARY KEY,
+                        title TEXT,
+                        year TEXT,
+                        fetched_at INTEGER NOT NULL
+                    )
+                    """,
+                    // movies persisted before the cache existed count as freshly cached, so upgrading doesn't
+                    // refresh them all from OMDb at once; fetched_at is in milliseconds
+                    """
+                    INSERT OR IGNORE INTO omdb_cache (imdb_id, title, year, fetched_at)
+                    SELECT imdb_id, title, year, unixepoch() * 1000 FROM movies
+                    """)),
+            new Migration(2, "integer snowflakes and covering indexes", List.of(
+                    """
+                    CREATE TABLE movies_new (
+                        imdb_id TEXT PRIMARY KEY,
+                        title TEXT,
+                        year TEXT,
+                        has_been_watched INTEGER NOT NULL DEFAULT 0 CHECK (has_been_watched IN (0, 1))
+                    )
+                    """,
+                    "INSERT INTO movies_new SELECT imdb_id, title, year, COALESCE(has_been_watched, 0) FROM movies",
+                    """
+                    CREATE TABLE messages_new (
+                        message_id INTEGER PRIMARY KEY,
+                        imdb_id TEXT NOT NULL,
+                        FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
+                    )
+                    """,
+                    "INSERT INTO messages_new SELECT CAST(message_id AS INTEGER), imdb_id FROM messages",
+                    """
+                    CREATE TABLE likes_new (
+                        imdb_id TEXT NOT NULL,
+                        user_id INTEGER NOT NULL,
+                        PRIMARY KEY (imdb_id, user_id),
+                        FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
+                    ) WITHOUT ROWID
+                    """,
+                    "INSERT INTO likes_new SELECT imdb_id, CAST(user_id AS INTEGER) FROM likes",
+                    "DROP TABLE likes",
+                    "DROP TABLE messages",
+                    "DROP TABLE movies",
+                    "ALTER TABLE movies_new RENAME TO movies",
+                    "ALTER TABLE messages_new RENAME TO messages",
+                    "ALTER TABLE likes_new RENAME TO likes",
+                    // message_id is the rowid, so this index covers imdb_id -> message_id lookups
+                    "CREATE INDEX messages_by_imdb_id ON messages (imdb_id)",
+                    "CREATE INDEX likes_by_user_id ON likes (user_id, imdb_id)",
+                    "CREATE INDEX unwatched_movies ON movies (imdb_id) WHERE has_been_watched = 0")),
+            new Migration(3, "channel catch-up high-water marks", List.of(
+                    """
+                    CREATE TABLE sync_state (
+                        channel_id INTEGER PRIMARY KEY,
+                        last_message_id INTEGER NOT NULL
+                    )
+                    """)),
+            new Migration(4, "messages with several movies", List.of(
+                    """
+                    CREATE TABLE messages_new (
+                        message_id INTEGER NOT NULL,
+                        imdb_id TEXT NOT NULL,
+                        PRIMARY KEY (message_id, imdb_id),
+                        FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
+                    ) WITHOUT ROWID
+                    """,
+                    "INSERT INTO messages_new SELECT message_id, imdb_id FROM messages",
+                    "DROP TABLE messages",
+                    "ALTER TABLE messages_new RENAME TO messages",
+                    // secondary indexes of a WITHOUT ROWID table carry the primary key, so this still covers imdb_id -> message_id
+                    "CREATE INDEX messages_by_imdb_id ON messages (imdb_id)")),
+            new Migration(5, "full-text index of movie titles", List.of(
+                    // external content over the rowids of movies, so titles aren't stored twice; the prefix
+                    // indexes let "godf*" be answered from the index instead of scanning all terms
+                    """
+                    CREATE VIRTUAL TABLE movie_titles USING fts5(
+                        title, year,
+                        content = 'movies', content_rowid = 'rowid',
+                        tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3'
+                    )
+                    """,
+                    """
+                    CREATE TRIGGER movie_titles_after_insert AFTER INSERT ON movies BEGIN
+                        INSERT INTO movie_titles (rowid, title, year) VALUES (new.rowid, new.title, new.year);
+                    END
+                    """,
+                    """
+                    CREATE TRIGGER movie_titles_after_delete AFTER DELETE ON movies BEGIN
+                        INSERT INTO movie_titles (movie_titles, rowid, title, year) VALUES ('delete', old.rowid, old.title, old.year);
+                    END
+                    """,
+                    // marking a movie as watched doesn't touch the index
+                    """
+                    CREATE TRIGGER movie_titles_after_update AFTER UPDATE OF title, year ON movies BEGIN
+                        INSERT INTO movie_titles (movie_titles, rowid, title, year) VALUES ('delete', old.rowid, old.title, old.year);
+                        INSERT INTO movie_titles (rowid, title, year) VALUES (new.rowid, new.title, new.year);
+                    END
+                    """,
+                    "INSERT INTO movie_titles (movie_titles) VALUES ('rebuild')",
+                    // a title match outranks a year match
+                    "INSERT INTO movie_titles (movie_titles, rank) VALUES ('rank', 'bm25(10.0, 1.0)')")),
+            new Migration(6, "like timestamps", List.of(
+                    // in unix seconds; when the existing likes were given isn't known, so they count as old
+                    "ALTER TABLE likes ADD COLUMN liked_at INTEGER NOT NULL DEFAULT 0")),
+            new Migration(7, "stable movie rowids for the title index", List.of(
+                    // VACUUM, and so VACUUM INTO, may renumber the implicit rowids of a table with a TEXT primary
+                    // key, which would leave the external-content index pointing at the wrong movies
+                    "DROP TRIGGER movie_titles_after_insert",
+                    "DROP TRIGGER movie_titles_after_delete",
+                    "DROP TRIGGER movie_titles_after_update",
+                    "DROP TABLE movie_titles",
+                    """
+                    CREATE TABLE movies_new (
+                        id INTEGER PRIMARY KEY,
+                        imdb_id TEXT NOT NULL UNIQUE,
+                        title TEXT,
+                        year TEXT,
+                        has_been_watched INTEGER NOT NULL DEFAULT 0 CHECK (has_been_watched IN (0, 1))
+                    )
+                    """,
+                    "INSERT INTO movies_new (id, imdb_id, title, year, has_been_watched) SELECT rowid, imdb_id, title, year, has_been_watched FROM movies",
+                    "DROP TABLE movies",
+                    "ALTER TABLE movies_new RENAME TO movies",
+                    "CREATE INDEX unwatched_movies ON movies (imdb_id) WHERE has_been_watched = 0",
+                    """
+                    CREATE VIRTUAL TABLE movie_titles USING fts5(
+                        title, year,
+                        content = 'movies', content_rowid = 'id',
+                        tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3'
+                    )
+                    """,
+                    """
+                    CREATE TRIGGER movie_titles_after_insert AFTER INSERT ON movies BEGIN
+                        INSERT INTO movie_titles (rowid, title, year) VALUES (new.id, new.title, new.year);
+                    END
+                    """,
+                    """
+                    CREATE TRIGGER movie_titles_after_delete AFTER DELETE ON movies BEGIN
+                        INSERT INTO movie_titles (movie_titles, rowid, title, year) VALUES ('delete', old.id, old.title, old.year);
+                    END
+                    """,
+                    """
+                    CREATE TRIGGER movie_titles_after_update AFTER UPDATE OF title, year ON movies BEGIN
+                        INSERT INTO movie_titles (movie_titles, rowid, title, year) VALUES ('delete', old.id, old.title, old.year);
+                        INSERT INTO movie_titles (rowid, title, year) VALUES (new.id, new.title, new.year);
+                    END
+                    """,
+                    "INSERT INTO movie_titles (movie_titles) VALUES ('rebuild')",
+                    "INSERT INTO movie_titles (movie_titles, rank) VALUES ('rank', 'bm25(10.0, 1.0)')"))
+    );
+
+    public static void migrate(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("""
+                    CREATE TABLE IF NOT EXISTS schema_version (
+                        version INTEGER PRIMARY KEY,
+                        applied_at INTEGER NOT NULL
+                    )
+                    """);
+        }
+
+        int currentVersion = currentVersion(connection);
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version() <= currentVersion) continue;
+            apply(connection, migration);
+            Log.info("applied schema migration").with("version", migration.version())
+                    .with("description", migration.description()).log();
+        }
+    }
+
+    private static int currentVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private static void apply(Connection connection, Migration migration) throws SQLException {
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            for (String sql : migration.statements()) {
+                stmt.execute(sql);
+            }
+            stmt.execute("INSERT INTO schema_version (version, applied_at) VALUES (%d, %d)"
+                    .formatted(migration.version(), System.currentTimeMillis()));
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw new SQLException("Schema migration " + migration.version() + " failed: " + e.getMessage(), e);
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+}
@@ -6,48 +6,147 @@ import org.yaml.snakeyaml.Yaml;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 @Getter
 public class SettingsLoader {
     private final String discordBotToken;
     private final String omdbApiKey;
-    private final long movieChannelId;
+    private final List<MovieChannelSettings> movieChannels;
     private final long ownerId;
     private final long botId;
+    private final boolean useSqlSuggestions;
+    private final long metricsPort;
+    private final long snapshotIntervalMinutes;
+    private final long snapshotsToKeep;
+    private final Log.Level logLevel;
 
-    public SettingsLoader(String filePath) {
+    /**
+     * Reads and validates the settings. Instances are immutable, so a reloaded file is a new instance.
+     *
+     * @throws IllegalArgumentException if a setting is missing or invalid
+     */
+    public SettingsLoader(String filePath) throws IOException {
         Yaml yaml = new Yaml();
         try (InputStream inputStream = new FileInputStream(filePath)) {
             Map<String, Object> data = yaml.load(inputStream);
+            if (data == null) {
+                throw new IllegalArgumentException("settings file is empty");
+            }
 
             this.discordBotToken = requireNonNull(data, "discordBotToken");
             this.omdbApiKey = requireNonNull(data, "omdbApiKey");
-            this.movieChannelId = requireLong(data, "movieChannelId");
             this.ownerId = requireLong(data, "ownerId");
+            this.movieChannels = data.containsKey("movieChannels")
+                    ? movieChannels(data, ownerId)
+                    : List.of(new MovieChannelSettings(requireLong(data, "movieChannelId"), ownerId));
             this.botId = requireLong(data, "botId");
-        } catch (IOException e) {
+            this.useSqlSuggestions = optionalBoolean(data, "useSqlSuggestions", false);
+            this.metricsPort = optionalLong(data, "metricsPort", 9464);
+            this.snapshotIntervalMinutes = optionalLong(data, "snapshotIntervalMinutes", 360);
+            this.snapshotsToKeep = optionalLong(data, "snapshotsToKeep", 8);
+            this.logLevel = optionalLogLevel(data, "logLevel", Log.Level.INFO);
+        }
+        if (metricsPort < 0 || metricsPort > 65535) {
+            throw new IllegalArgumentException("metricsPort must be between 0 and 65535");
+        }
+        if (snapshotIntervalMinutes < 0 || snapshotsToKeep < 1) {
+            throw new IllegalArgumentException("snapshotIntervalMinutes must not be negative and snapshotsToKeep must be at least 1");
+        }
+    }
+
+    /**
+     * For startup, where there are no previous settings to fall back to.
+     */
+    public static SettingsLoader loadOrExit(String filePath) {
+        try {
+            return new SettingsLoader(filePath);
+        } catch (IOException | RuntimeException e) {
             System.err.println("Could not load settings.yaml: " + e.getMessage());
             System.exit(1);
             throw new AssertionError("Unreachable");
         }
     }
 
+    /**
+     * One movie channel. Errors in the channel mention its owner, which defaults to the global ownerId.
+     */
+    public record MovieChannelSettings(long channelId, long ownerId) {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<MovieChannelSettings> movieChannels(Map<String, Object> data, long defaultOwnerId) {
+        if (!(data.get("movieChannels") instanceof List<?> channels)) {
+            throw new IllegalArgumentException("movieChannels must be a list");
+        }
+        List<MovieChannelSettings> movieChannels = new ArrayList<>();
+        Set<Long> channelIds = new HashSet<>();
+        for (Object channel : channels) {
+            if (!(channel instanceof Map<?, ?>)) {
+                throw new IllegalArgumentException("every entry of movieChannels needs a channelId");
+            }
+            Map<String, Object> channelData = (Map<String, Object>) channel;
+            MovieChannelSettings settings = new MovieChannelSettings(requireLong(channelData, "channelId"),
+                    optionalLong(channelData, "ownerId", defaultOwnerId));
+            if (!channelIds.add(settings.channelId())) {
+                throw new IllegalArgumentException("movieChannels lists channel " + settings.channelId() + " twice");
+            }
+            movieChannels.add(settings);
+        }
+        if (movieChannels.isEmpty()) {
+            throw new IllegalArgumentException("movieChannels must list at least one channel");
+        }
+        return List.copyOf(movieChannels);
+    }
+
     private static String requireNonNull(Map<String, Object> data, String key) {
-        Object value = data.get(key);
-        if (value == null) {
-            System.err.println("Missing required setting: " + key);
-            System.exit(1);
+        if (!(data.get(key) instanceof String value) || value.isBlank()) {
+            throw new IllegalArgumentException("Missing required setting: " + key);
         }
-        return (String) value;
+        return value;
     }
 
     private static long requireLong(Map<String, Object> data, String key) {
         Object value = data.get(key);
         if (value == null) {
-            System.err.println("Missing required setting: " + key);
-            System.exit(1);
+            throw new IllegalArgumentException("Missing required setting: " + key);
+        }
+        return toLong(key, value);
+    }
+
+    private static long optionalLong(Map<String, Object> data, String key, long defaultValue) {
+        Object value = data.get(key);
+        return value == null ? defaultValue : toLong(key, value);
+    }
+
+    private static long toLong(String key, Object value) {
+        if (!(value instanceof Number number)) {
+            throw new IllegalArgumentException(key + " must be a number");
+        }
+        return number.longValue();
+    }
+
+    private static Log.Level optionalLogLevel(Map<String, Object> data, String key, Log.Level defaultValue) {
+        Object value = data.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return Log.Level.valueOf(value.toString().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException _) {
+            throw new IllegalArgumentException(key + " must be one of debug, info, warn or error");
+        }
+    }
+
+    private static boolean optionalBoolean(Map<String, Object> data, String key, boolean defaultValue) {
+        Object value = data.get(key);
+        if (value == null) return defaultValue;
+        if (!(value instanceof Boolean bool)) {
+            throw new IllegalArgumentException(key + " must be true or false");
         }
-        return (long) value;
+        return bool;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+package com.github.jakobheiden;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Watches the settings file and publishes every valid new version through an atomic reference. Settings
+ * are immutable, so readers always see one consistent version. A file that doesn't validate is reported,
+ * and the previous settings stay in effect.
+ */
+public class SettingsReloader implements AutoCloseable {
+
+    // editors write a file in several steps, so events are collected for a moment before reading it
+    private static final long DEBOUNCE_MILLIS = 200;
+
+    private final Path path;
+    private final AtomicReference<SettingsLoader> current;
+    private final BiConsumer<SettingsLoader, SettingsLoader> onChange;
+    private final WatchService watchService;
+
+    /**
+     * @param onChange called with the previous and the new settings after each reload, on the watcher thread
+     */
+    public SettingsReloader(Path path, SettingsLoader initial, BiConsumer<SettingsLoader, SettingsLoader> onChange)
+            throws IOException {
+        this.path = path.toAbsolutePath();
+        this.current = new AtomicReference<>(initial);
+        this.onChange = onChange;
+        watchService = FileSystems.getDefault().newWatchService();
+        // the directory is watched, since editors often replace the file instead of writing to it
+        this.path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread.ofPlatform().name("settings-reloader").daemon().start(this::watch);
+    }
+
+    public SettingsLoader get() {
+        return current.get();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Thread.sleep(DEBOUNCE_MILLIS);
+                boolean isSettingsFileChanged = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context())) {
+                        isSettingsFileChanged = true;
+                    }
+                }
+                key.reset();
+                if (isSettingsFileChanged) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException _) {
+        }
+    }
+
+    private void reload() {
+        SettingsLoader next;
+        try {
+            next = new SettingsLoader(path.toString());
+        } catch (IOException | RuntimeException e) {
+            Log.warn("ignoring changed settings, keeping the previous ones").with("error", e).log();
+            return;
+        }
+
+        SettingsLoader previous = current.getAndSet(next);
+        Log.info("reloaded settings").with("file", path.getFileName().toString()).log();
+        try {
+            onChange.accept(previous, next);
+        } catch (RuntimeException e) {
+            Log.error("failed to apply reloaded settings").with("error", e).log();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
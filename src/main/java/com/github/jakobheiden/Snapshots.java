@@ -0,0 +1,143 @@
+package com.github.jakobheiden;
+
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Online snapshots of one movie channel's database, taken with VACUUM INTO while the bot keeps running.
+ * Snapshots are named {@code <prefix>-<yyyyMMdd-HHmmss>.db}, and only the newest {@code keep} are kept. Every snapshot logs how long it took and how the command handlers fared
+ * meanwhile, so its cost on handler latency shows up in the logs.
+ */
+public class Snapshots {
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final LatencyHistogram SNAPSHOT_LATENCY = Metrics.latency("dienstag_snapshot_seconds",
+            "Time to write one database snapshot", null, null);
+
+    private final MovieRepository movieRepository;
+    private final Path directory;
+    private final String prefix;
+    private final int keep;
+    private final Collection<LatencyHistogram> handlerLatencies;
+    private final Pattern namePattern;
+
+    /**
+     * @param handlerLatencies the handler histograms whose latency is reported next to each snapshot
+     */
+    public Snapshots(MovieRepository movieRepository, Path directory, String prefix, int keep,
+                     Collection<LatencyHistogram> handlerLatencies) {
+        this.movieRepository = movieRepository;
+        this.directory = directory;
+        this.prefix = prefix;
+        this.keep = keep;
+        this.handlerLatencies = List.copyOf(handlerLatencies);
+        namePattern = Pattern.compile(Pattern.quote(prefix) + "-\\d{8}-\\d{6}\\.db");
+    }
+
+    /**
+     * Writes a new snapshot next to the others, under a temporary name until it is complete.
+     */
+    public Mono<Path> take() {
+        return Mono.defer(() -> {
+            Path snapshot = directory.resolve(prefix + "-" + LocalDateTime.now().format(TIMESTAMP) + ".db");
+            Path partial = Path.of(snapshot + ".partial");
+            long handlerCount = handlerCount();
+            long handlerNanos = handlerNanos();
+            long start = System.nanoTime();
+            return Mono.fromCallable(() -> {
+                        Files.createDirectories(directory);
+                        Files.deleteIfExists(partial);
+                        return partial;
+                    })
+                    .then(movieRepository.snapshot(partial))
+                    .then(Mono.fromCallable(() -> {
+                        Files.move(partial, snapshot, StandardCopyOption.ATOMIC_MOVE);
+                        SNAPSHOT_LATENCY.recordSince(start);
+                        logSnapshot(snapshot, start, handlerCount, handlerNanos);
+                        prune();
+                        return snapshot;
+                    }));
+        });
+    }
+
+    /**
+     * Replaces the database with the snapshot.
+     */
+    public Mono<Void> restore(Path snapshot) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return movieRepository.restore(snapshot)
+                    .doOnSuccess(_ -> Log.info("snapshot: restored").with("file", snapshot.getFileName().toString())
+                            .withMillisSince("latency_ms", start).log());
+        });
+    }
+
+    /**
+     * @param name "latest", or the file name of a snapshot, with or without ".db"
+     * @return the snapshot, or null if there is no such snapshot
+     */
+    public Path resolve(String name) {
+        List<Path> snapshots = list();
+        if (name.equalsIgnoreCase("latest")) {
+            return snapshots.isEmpty() ? null : snapshots.getLast();
+        }
+        String fileName = name.endsWith(".db") ? name : name + ".db";
+        // only names this class generates, so the name can't point outside the directory
+        if (!namePattern.matcher(fileName).matches()) return null;
+        Path snapshot = directory.resolve(fileName);
+        return snapshots.contains(snapshot) ? snapshot : null;
+    }
+
+    /**
+     * @return the snapshots, oldest first
+     */
+    private List<Path> list() {
+        if (!Files.isDirectory(directory)) return List.of();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> namePattern.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void prune() throws IOException {
+        List<Path> snapshots = list();
+        for (Path snapshot : snapshots.subList(0, Math.max(0, snapshots.size() - keep))) {
+            Files.deleteIfExists(snapshot);
+            Log.info("snapshot: deleted").with("file", snapshot.getFileName().toString()).log();
+        }
+    }
+
+    private void logSnapshot(Path snapshot, long start, long handlerCountBefore, long handlerNanosBefore)
+            throws IOException {
+        long handled = handlerCount() - handlerCountBefore;
+        double meanDuringMillis = handled == 0 ? 0 : (handlerNanos() - handlerNanosBefore) / 1e6 / handled;
+        long totalHandled = handlerCount();
+        double meanOverallMillis = totalHandled == 0 ? 0 : handlerNanos() / 1e6 / totalHandled;
+        Log.info("snapshot: wrote").with("file", snapshot.getFileName().toString()).with("bytes", Files.size(snapshot))
+                .withMillisSince("latency_ms", start).with("handled_meanwhile", handled)
+                .with("handler_mean_meanwhile_ms", meanDuringMillis).with("handler_mean_overall_ms", meanOverallMillis)
+                .log();
+    }
+
+    private long handlerCount() {
+        return handlerLatencies.stream().mapToLong(LatencyHistogram::count).sum();
+    }
+
+    private long handlerNanos() {
+        return handlerLatencies.stream().mapToLong(LatencyHistogram::sumNanos).sum();
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.jakobheiden;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU of suggestion results, keyed by the sorted set of mentioned users. Every write that can change
+ * a suggestion bumps one version counter, and entries computed at an older version count as misses.
+ * The version is global rather than per user, since the overall like counts in a result depend on
+ * the likes of everyone.
+ */
+public class SuggestionCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final LongAdder HITS = lookupCounter("hit");
+    private static final LongAdder MISSES = lookupCounter("miss");
+
+    private record Entry(long version, MovieRepository.MovieSuggestions suggestions) {
+    }
+
+    private final AtomicLong version = new AtomicLong();
+    private final Map<List<Long>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Long>, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static LongAdder lookupCounter(String result) {
+        return Metrics.counter("dienstag_suggestion_cache_lookups_total", "Suggestion cache lookups, by result", "result", result);
+    }
+
+    /**
+     * Mentioning the same users in a different order or twice gives the same suggestions, so they share a key.
+     */
+    public static List<Long> key(List<Long> mentionedUserIds) {
+        return mentionedUserIds.stream().distinct().sorted().toList();
+    }
+
+    /**
+     * Call after the change is visible to the suggestion query.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * Read before computing a result, and store the result with this version.
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * @return the cached suggestions, or null if there are none for the current version
+     */
+    public MovieRepository.MovieSuggestions get(List<Long> key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null || entry.version() != version.get()) {
+            MISSES.increment();
+            return null;
+        }
+        HITS.increment();
+        return entry.suggestions();
+    }
+
+    public void put(List<Long> key, long version, MovieRepository.MovieSuggestions suggestions) {
+        synchronized (entries) {
+            entries.put(key, new Entry(version, suggestions));
+        }
+    }
+}
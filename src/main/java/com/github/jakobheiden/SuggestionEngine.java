@@ -0,0 +1,322 @@
+package com.github.jakobheiden;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory replacement for the suggestion query. User ids are mapped to dense ordinals and every
+ * movie keeps a bitset of the users that liked it, so the tagged like count is an AND-popcount
+ * against the mask of mentioned users. Kept up to date by {@link MovieRepository} on every write.
+ * <p>
+ * For the ranked mode, every movie also keeps its like count and the sum of its likes weighted by
+ * recency. Each like weighs 2^((liked_at - epoch) / half-life), so a like adds one term to the sum, an
+ * unlike sums the remaining terms again, and scaling it down to the current time is a single multiplication.
+ */
+public class SuggestionEngine {
+
+    static final long RECENCY_HALF_LIFE_SECONDS = Duration.ofDays(30).toSeconds();
+    // 2024-01-01; the weights double every half-life after it, which stays well within a double for decades
+    private static final long RECENCY_EPOCH_SECONDS = 1_704_067_200L;
+    private static final double OTHER_LIKES_WEIGHT = 0.25;
+    private static final double RECENT_LIKES_WEIGHT = 1.0;
+
+    private static final class MovieState {
+        final String imdbId;
+        String title;
+        String year;
+        boolean isInMovies;
+        boolean hasBeenWatched;
+        long[] likers = new long[1];
+        int likeCount;
+        double recencyWeight;
+        // the like times in the order of the likers' ordinals, so only liked pairs take space; the times are
+        // needed to sum the weights again when a like is removed
+        long[] likedAt = new long[1];
+
+        MovieState(String imdbId) {
+            this.imdbId = imdbId;
+        }
+
+        /**
+         * @return the time of the like that is kept, which is the earlier one if the user liked the movie already
+         */
+        long setLiked(int userOrdinal, boolean liked, long likedAtSeconds) {
+            int word = userOrdinal >>> 6;
+            if (word >= likers.length) {
+                if (!liked) return likedAtSeconds;
+                likers = Arrays.copyOf(likers, Math.max(word + 1, likers.length * 2));
+            }
+            long bit = 1L << userOrdinal;
+            int index = likerIndex(word, bit);
+            boolean isLiked = (likers[word] & bit) != 0;
+            if (isLiked == liked) return isLiked ? likedAt[index] : likedAtSeconds;
+            if (liked) {
+                likers[word] |= bit;
+                if (likeCount == likedAt.length) {
+                    likedAt = Arrays.copyOf(likedAt, likeCount * 2);
+                }
+                System.arraycopy(likedAt, index, likedAt, index + 1, likeCount - index);
+                likedAt[index] = likedAtSeconds;
+                likeCount++;
+                recencyWeight += recencyWeight(likedAtSeconds);
+            } else {
+                likers[word] &= ~bit;
+                likeCount--;
+                System.arraycopy(likedAt, index + 1, likedAt, index, likeCount - index);
+                // summed afresh instead of subtracting, so rounding errors can't pile up over many likes and unlikes
+                recencyWeight = 0;
+                for (int i = 0; i < likeCount; i++) {
+                    recencyWeight += recencyWeight(likedAt[i]);
+                }
+            }
+            return likedAtSeconds;
+        }
+
+        /**
+         * The number of likers with a lower ordinal, which is the position of the user's like time.
+         */
+        private int likerIndex(int word, long bit) {
+            int index = Long.bitCount(likers[word] & (bit - 1));
+            for (int i = 0; i < word; i++) {
+                index += Long.bitCount(likers[i]);
+            }
+            return index;
+        }
+    }
+
+    private record Candidate(MovieState movie, int allLikeCount) {
+    }
+
+    private final Map<Long, Integer> userOrdinals = new HashMap<>();
+    private final Map<String, MovieState> movies = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void load(Connection connection) throws SQLException {
+        lock.writeLock().lock();
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet resultSet = stmt.executeQuery("SELECT imdb_id, title, year, has_been_watched FROM movies")) {
+                while (resultSet.next()) {
+                    MovieState movie = movie(resultSet.getString("imdb_id"));
+                    movie.title = resultSet.getString("title");
+                    movie.year = resultSet.getString("year");
+                    movie.isInMovies = true;
+                    movie.hasBeenWatched = resultSet.getBoolean("has_been_watched");
+                }
+            }
+            try (ResultSet resultSet = stmt.executeQuery("SELECT imdb_id, user_id, liked_at FROM likes")) {
+                while (resultSet.next()) {
+                    movie(resultSet.getString("imdb_id")).setLiked(userOrdinal(resultSet.getLong("user_id")), true,
+                            resultSet.getLong("liked_at"));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Log.info("loaded suggestion engine").with("movies", movies.size()).with("users", userOrdinals.size()).log();
+    }
+
+    public void movieAdded(String imdbId, String title, String year) {
+        lock.writeLock().lock();
+        try {
+            MovieState movie = movie(imdbId);
+            if (movie.isInMovies) return;
+            movie.title = title;
+            movie.year = year;
+            movie.isInMovies = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the like time to store, which is the earlier one if the user liked the movie already
+     */
+    public long liked(long userId, String imdbId, long likedAtSeconds) {
+        return setLiked(userId, imdbId, true, likedAtSeconds);
+    }
+
+    public void unliked(String imdbId, long userId) {
+        setLiked(userId, imdbId, false, 0);
+    }
+
+    public void watchedChanged(String imdbId, boolean hasBeenWatched) {
+        lock.writeLock().lock();
+        try {
+            movie(imdbId).hasBeenWatched = hasBeenWatched;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Same result as the SQL suggestion query: the unwatched movies with the highest tagged like
+     * count, ordered by overall like count ascending, then by IMDb id.
+     */
+    public MovieRepository.MovieSuggestions suggest(List<Long> mentionedUserIds) {
+        lock.readLock().lock();
+        try {
+            long[] mask = mask(mentionedUserIds);
+
+            int maxTaggedLikeCount = 0;
+            List<Candidate> candidates = new ArrayList<>();
+            for (MovieState movie : movies.values()) {
+                if (!movie.isInMovies || movie.hasBeenWatched) continue;
+                int taggedLikeCount = 0;
+                for (int word = 0; word < Math.min(mask.length, movie.likers.length); word++) {
+                    taggedLikeCount += Long.bitCount(movie.likers[word] & mask[word]);
+                }
+                if (taggedLikeCount == 0 || taggedLikeCount < maxTaggedLikeCount) continue;
+                if (taggedLikeCount > maxTaggedLikeCount) {
+                    maxTaggedLikeCount = taggedLikeCount;
+                    candidates.clear();
+                }
+                candidates.add(new Candidate(movie, movie.likeCount));
+            }
+
+            candidates.sort(Comparator.comparingInt(Candidate::allLikeCount)
+                    .thenComparing(candidate -> candidate.movie().imdbId));
+            List<Integer> allLikeCounts = new ArrayList<>();
+            List<String> imdbIds = new ArrayList<>();
+            List<String> titles = new ArrayList<>();
+            List<String> years = new ArrayList<>();
+            for (Candidate candidate : candidates) {
+                allLikeCounts.add(candidate.allLikeCount());
+                imdbIds.add(candidate.movie().imdbId);
+                titles.add(candidate.movie().title);
+                years.add(candidate.movie().year);
+            }
+            return new MovieRepository.MovieSuggestions(maxTaggedLikeCount, allLikeCounts, imdbIds, titles, years);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The {@code k} unwatched movies with the best {@link #score}, best first. Only movies that at least one
+     * of the mentioned users liked are ranked, and the candidates go through a heap of size k instead of
+     * being collected and sorted.
+     */
+    public List<MovieRepository.RankedSuggestion> rank(List<Long> mentionedUserIds, int k) {
+        long now = Instant.now().getEpochSecond();
+        double decay = Math.pow(0.5, (double) (now - RECENCY_EPOCH_SECONDS) / RECENCY_HALF_LIFE_SECONDS);
+        lock.readLock().lock();
+        try {
+            long[] mask = mask(mentionedUserIds);
+            TopK topK = new TopK(k);
+            for (MovieState movie : movies.values()) {
+                if (!movie.isInMovies || movie.hasBeenWatched) continue;
+                int taggedLikeCount = 0;
+                for (int word = 0; word < Math.min(mask.length, movie.likers.length); word++) {
+                    taggedLikeCount += Long.bitCount(movie.likers[word] & mask[word]);
+                }
+                if (taggedLikeCount == 0) continue;
+                double score = score(taggedLikeCount, movie.likeCount, movie.recencyWeight * decay);
+                if (!topK.isCandidate(score, movie.imdbId)) continue;
+                topK.offer(new MovieRepository.RankedSuggestion(movie.imdbId, movie.title, movie.year, taggedLikeCount,
+                        movie.likeCount, score));
+            }
+            return topK.toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Likes of the mentioned users count most, likes of everyone else hint at general interest, and recent
+     * likes, each weighing 1 when fresh and half as much every {@link #RECENCY_HALF_LIFE_SECONDS}, surface
+     * what the channel is excited about now.
+     *
+     * @param recentLikes the likes weighted by recency, at most the like count
+     */
+    static double score(int taggedLikeCount, int allLikeCount, double recentLikes) {
+        return taggedLikeCount + OTHER_LIKES_WEIGHT * (allLikeCount - taggedLikeCount) + RECENT_LIKES_WEIGHT * recentLikes;
+    }
+
+    /**
+     * Bounded min-heap of the best suggestions so far, so ranking keeps k entries whatever the number of
+     * candidates. Ties go to the lower IMDb id, like in the tie-based mode.
+     */
+    static final class TopK {
+        private static final Comparator<MovieRepository.RankedSuggestion> WORST_FIRST =
+                Comparator.comparingDouble(MovieRepository.RankedSuggestion::score)
+                        .thenComparing(MovieRepository.RankedSuggestion::imdbId, Comparator.reverseOrder());
+
+        private final int k;
+        private final PriorityQueue<MovieRepository.RankedSuggestion> heap;
+
+        TopK(int k) {
+            this.k = k;
+            heap = new PriorityQueue<>(k + 1, WORST_FIRST);
+        }
+
+        /**
+         * Checked before building the suggestion, so rows that can't make it allocate nothing.
+         */
+        boolean isCandidate(double score, String imdbId) {
+            if (heap.size() < k) return true;
+            MovieRepository.RankedSuggestion worst = heap.peek();
+            return score > worst.score() || (score == worst.score() && imdbId.compareTo(worst.imdbId()) < 0);
+        }
+
+        void offer(MovieRepository.RankedSuggestion suggestion) {
+            heap.add(suggestion);
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+
+        List<MovieRepository.RankedSuggestion> toList() {
+            List<MovieRepository.RankedSuggestion> best = new ArrayList<>(heap);
+            best.sort(WORST_FIRST.reversed());
+            return best;
+        }
+    }
+
+    private static double recencyWeight(long likedAtSeconds) {
+        return Math.pow(2, (double) (likedAtSeconds - RECENCY_EPOCH_SECONDS) / RECENCY_HALF_LIFE_SECONDS);
+    }
+
+    private long[] mask(List<Long> mentionedUserIds) {
+        long[] mask = new long[1];
+        for (long userId : mentionedUserIds) {
+            Integer ordinal = userOrdinals.get(userId);
+            if (ordinal == null) continue;
+            int word = ordinal >>> 6;
+            if (word >= mask.length) {
+                mask = Arrays.copyOf(mask, word + 1);
+            }
+            mask[word] |= 1L << ordinal;
+        }
+        return mask;
+    }
+
+    private long setLiked(long userId, String imdbId, boolean liked, long likedAtSeconds) {
+        lock.writeLock().lock();
+        try {
+            return movie(imdbId).setLiked(userOrdinal(userId), liked, likedAtSeconds);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private MovieState movie(String imdbId) {
+        return movies.computeIfAbsent(imdbId, MovieState::new);
+    }
+
+    private int userOrdinal(long userId) {
+        return userOrdinals.computeIfAbsent(userId, _ -> userOrdinals.size());
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.jakobheiden;
+
+/**
+ * Classic token bucket. Not thread-safe; {@link DiscordOutbox} only uses it from its dispatcher.
+ */
+public class TokenBucket {
+
+    private final int capacity;
+    private final long nanosPerToken;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(int capacity, long nanosPerToken) {
+        this.capacity = capacity;
+        this.nanosPerToken = nanosPerToken;
+        this.tokens = capacity;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the nanoseconds until the next token is available
+     */
+    public long tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (double) (now - lastRefill) / nanosPerToken);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        // never 0, which would read as acquired just below a whole token
+        return Math.max(1, (long) Math.ceil((1 - tokens) * nanosPerToken));
+    }
+}
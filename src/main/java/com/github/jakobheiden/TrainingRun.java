@@ -0,0 +1,75 @@
+package com.github.jakobheiden;
+
+import com.google.gson.JsonParser;
+import discord4j.core.DiscordClientBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Workload for the AOT cache training run ("--training"). Exercises the startup and hot paths
+ * against a throwaway database, without Discord or OMDb, so their classes end up in the cache.
+ */
+public class TrainingRun {
+
+    public static void run() throws Exception {
+        Path directory = Files.createTempDirectory("dienstag-training");
+        try {
+            Path settings = directory.resolve("settings.yaml");
+            Files.writeString(settings, """
+                    discordBotToken: training
+                    omdbApiKey: training
+                    movieChannelId: 1
+                    ownerId: 2
+                    botId: 3
+                    """);
+            new SettingsLoader(settings.toString());
+
+            MovieRepository movieRepository = new MovieRepository(directory.resolve("movies.db").toString(), false);
+            movieRepository.initSchema().block();
+            movieRepository.persistMovieMessage(1_000_000_000_000_000_000L, 2L,
+                    Map.of("tt0111161", new MovieMetadata("The Shawshank Redemption", "1994"))).block();
+            movieRepository.persistMessage(1_000_000_000_000_000_001L, "tt0111161").block();
+            movieRepository.persistLike(2L, "tt0111161");
+            movieRepository.fetchImdbIdsFromMessageId(1_000_000_000_000_000_000L);
+            movieRepository.fetchMovieSuggestions(List.of(2L)).block();
+            movieRepository.fetchRankedSuggestions(List.of(2L)).block();
+            movieRepository.searchMovies("shawsh").block();
+            movieRepository.flushLikes().block();
+            movieRepository.markMovieAsSeen("tt0111161").block();
+            movieRepository.fetchMessageIds("tt0111161").collectList().block();
+            movieRepository.advanceHighWaterMark(1L, 1_000_000_000_000_000_000L).block();
+            movieRepository.fetchHighWaterMark(1L).block();
+            movieRepository.snapshot(directory.resolve("snapshot.db")).block();
+            movieRepository.restore(directory.resolve("snapshot.db")).block();
+            movieRepository.close();
+
+            EventRouter.extractImdbIds("https://www.imdb.com/title/tt0111161/ https://www.imdb.com/title/tt0068646/");
+            JsonParser.parseString("{\"Response\":\"True\",\"Title\":\"The Shawshank Redemption\",\"Year\":\"1994\"}");
+            new OmdbClient("training");
+            Metrics.scrape();
+
+            // builds the REST client and its Reactor Netty resources; nothing connects until login
+            DiscordClientBuilder.create("training").build();
+        } finally {
+            deleteRecursively(directory);
+        }
+
+        Log.info("training run finished").log();
+        Log.flush();
+        System.exit(0);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
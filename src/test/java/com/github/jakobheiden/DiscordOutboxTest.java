@@ -0,0 +1,119 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DiscordOutboxTest {
+
+    private static final long CHANNEL_ID = 1;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * Records the calls the outbox makes, in the order they were made.
+     */
+    private static class RecordingRest implements DiscordRest {
+
+        private final List<String> calls = new ArrayList<>();
+        private final AtomicLong nextMessageId = new AtomicLong(100);
+
+        synchronized List<String> calls() {
+            return List.copyOf(calls);
+        }
+
+        private synchronized void record(String call) {
+            calls.add(call);
+        }
+
+        @Override
+        public Mono<Long> createMessage(long channelId, String content) {
+            return Mono.fromSupplier(() -> {
+                record("message " + content);
+                return nextMessageId.getAndIncrement();
+            });
+        }
+
+        @Override
+        public Mono<Void> addReaction(long channelId, long messageId, String emoji) {
+            return Mono.fromRunnable(() -> record("add " + messageId + " " + emoji));
+        }
+
+        @Override
+        public Mono<Void> removeOwnReaction(long channelId, long messageId, String emoji) {
+            return Mono.fromRunnable(() -> record("remove " + messageId + " " + emoji));
+        }
+
+        @Override
+        public Flux<HistoryMessage> getMessagesAfter(long channelId, long afterMessageId) {
+            return Flux.empty();
+        }
+
+        @Override
+        public Flux<Long> getReactionUserIds(long channelId, long messageId, String emoji) {
+            return Flux.empty();
+        }
+    }
+
+    @Test
+    void onlyLatestReactionOperationOnMessageIsSent() {
+        RecordingRest rest = new RecordingRest();
+        DiscordOutbox outbox = new DiscordOutbox(rest);
+
+        // takes the route's only token, so the next two have to wait together
+        outbox.addReaction(CHANNEL_ID, 1, "👀", DiscordOutbox.Priority.REPLY).block(TIMEOUT);
+        Mono<Void> superseded = outbox.addReaction(CHANNEL_ID, 2, "👀", DiscordOutbox.Priority.REPLY).cache();
+        superseded.subscribe();
+        outbox.removeOwnReaction(CHANNEL_ID, 2, "👀", DiscordOutbox.Priority.REPLY).block(TIMEOUT);
+
+        assertNull(superseded.block(TIMEOUT));
+        assertEquals(List.of("add 1 👀", "remove 2 👀"), rest.calls());
+    }
+
+    @Test
+    void repliesGoBeforeBackfill() {
+        RecordingRest rest = new RecordingRest();
+        DiscordOutbox outbox = new DiscordOutbox(rest);
+
+        outbox.addReaction(CHANNEL_ID, 1, "👀", DiscordOutbox.Priority.BACKFILL).block(TIMEOUT);
+        Mono<Void> backfill = outbox.addReaction(CHANNEL_ID, 2, "👀", DiscordOutbox.Priority.BACKFILL).cache();
+        backfill.subscribe();
+        Mono<Void> reply = outbox.addReaction(CHANNEL_ID, 3, "👍", DiscordOutbox.Priority.REPLY).cache();
+        reply.subscribe();
+        Mono.when(backfill, reply).block(TIMEOUT);
+
+        assertEquals(List.of("add 1 👀", "add 3 👍", "add 2 👀"), rest.calls());
+    }
+
+    @Test
+    void waitingNoticesAreMergedIntoOneMessage() throws InterruptedException {
+        RecordingRest rest = new RecordingRest();
+        DiscordOutbox outbox = new DiscordOutbox(rest);
+
+        // the burst of the channel's message route, so the notices queue up behind it
+        for (int i = 0; i < 5; i++) {
+            outbox.createMessage(CHANNEL_ID, "reply " + i, DiscordOutbox.Priority.REPLY).block(TIMEOUT);
+        }
+        outbox.sendNotice(CHANNEL_ID, "first");
+        outbox.sendNotice(CHANNEL_ID, "second");
+        outbox.sendNotice(CHANNEL_ID, "third");
+
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (rest.calls().size() < 6 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // long enough for a second notice message to show up if there were one
+        Thread.sleep(1500);
+
+        List<String> calls = rest.calls();
+        assertEquals(6, calls.size());
+        assertEquals("message first\nsecond\nthird", calls.get(5));
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventRouterTest {
+
+    @Test
+    void extractsDistinctImdbIdsInOrder() {
+        String content = """
+                https://www.imdb.com/title/tt0133093/ and https://m.IMDB.com/de/title/tt0068646/?ref_=nv
+                again https://www.imdb.com/title/tt0133093/
+                """;
+
+        assertEquals(List.of("tt0133093", "tt0068646"), EventRouter.extractImdbIds(content));
+    }
+
+    @Test
+    void ignoresLinksThatAreNotTitles() {
+        assertEquals(List.of(), EventRouter.extractImdbIds("https://www.imdb.com/name/nm0000199/"));
+        assertEquals(List.of(), EventRouter.extractImdbIds("tt0133093 without a link"));
+        assertEquals(List.of(), EventRouter.extractImdbIds(""));
+    }
+
+    @Test
+    void rankedOptionMustFollowTheMentions() {
+        assertTrue(EventRouter.isRankedRequest("<@1> <@!2> ranked"));
+        assertTrue(EventRouter.isRankedRequest("  <@1>RANKED please"));
+        assertFalse(EventRouter.isRankedRequest("<@1> <@2> what have we ranked highest?"));
+        assertFalse(EventRouter.isRankedRequest("<@1> rankedness"));
+        assertFalse(EventRouter.isRankedRequest("ranked <@1>"));
+    }
+
+    @Test
+    void thumbsUpMatchesAllSkinTones() {
+        assertTrue(EventRouter.isThumbsUp("👍"));
+        assertTrue(EventRouter.isThumbsUp("👍🏽"));
+        assertFalse(EventRouter.isThumbsUp("👎"));
+        assertFalse(EventRouter.isThumbsUp("👀"));
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LikeJournalTest {
+
+    // long enough that only the test flushes
+    private static final long NO_BACKGROUND_FLUSH_MILLIS = 3_600_000;
+
+    @TempDir
+    Path directory;
+
+    private Database database;
+    private LikeJournal journal;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        database = new Database("jdbc:sqlite:" + directory.resolve("likes.db"));
+        database.writeBlocking(connection -> {
+            SchemaMigrations.migrate(connection);
+            return null;
+        });
+        journal = new LikeJournal(database, "like_journal_test", NO_BACKGROUND_FLUSH_MILLIS);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        journal.close();
+        database.close();
+    }
+
+    @Test
+    void laterOperationOnSamePairSupersedesEarlierOne() throws SQLException {
+        journal.like(1, "tt1", 100);
+        journal.unlike("tt1", 1);
+        journal.like(1, "tt1", 100);
+        journal.like(2, "tt1", 100);
+        journal.unlike("tt1", 2);
+
+        assertEquals(2, journal.pendingOperations());
+        assertTrue(journal.isPending("tt1", 1));
+        journal.flush();
+
+        assertEquals(0, journal.pendingOperations());
+        assertFalse(journal.isPending("tt1", 1));
+        assertEquals(1, likeCount("tt1", 1));
+        assertEquals(0, likeCount("tt1", 2));
+    }
+
+    @Test
+    void unlikeRemovesFlushedLike() throws SQLException {
+        journal.like(1, "tt1", 100);
+        journal.flush();
+        journal.unlike("tt1", 1);
+        journal.flush();
+
+        assertEquals(0, likeCount("tt1", 1));
+    }
+
+    @Test
+    void duplicateLikeKeepsOneRow() throws SQLException {
+        journal.like(1, "tt1", 100);
+        journal.flush();
+        journal.like(1, "tt1", 100);
+        journal.flush();
+
+        assertEquals(1, likeCount("tt1", 1));
+    }
+
+    @Test
+    void relikeAfterCoalescedUnlikeMovesLikeTime() throws SQLException {
+        journal.like(1, "tt1", 100);
+        journal.flush();
+        journal.unlike("tt1", 1);
+        journal.like(1, "tt1", 200);
+        journal.flush();
+
+        assertEquals(1, likeCount("tt1", 1));
+        assertEquals(200, likedAt("tt1", 1));
+    }
+
+    private int likeCount(String imdbId, long userId) throws SQLException {
+        return database.writeBlocking(connection -> {
+            try (Statement stmt = connection.createStatement();
+                 ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM likes WHERE imdb_id = '%s' AND user_id = %d"
+                         .formatted(imdbId, userId))) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        });
+    }
+
+    private long likedAt(String imdbId, long userId) throws SQLException {
+        return database.writeBlocking(connection -> {
+            try (Statement stmt = connection.createStatement();
+                 ResultSet resultSet = stmt.executeQuery("SELECT liked_at FROM likes WHERE imdb_id = '%s' AND user_id = %d"
+                         .formatted(imdbId, userId))) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessageIndexTest {
+
+    private static final long FIRST_MESSAGE = 1_100_000_000_000_000_000L;
+
+    @Test
+    void messageWithSeveralMoviesReturnsAllInOrder() {
+        MessageIndex index = new MessageIndex();
+        index.put(FIRST_MESSAGE, "tt1");
+        index.put(FIRST_MESSAGE, "tt2");
+        index.put(FIRST_MESSAGE, "tt3");
+
+        assertEquals(List.of("tt1", "tt2", "tt3"), index.get(FIRST_MESSAGE));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void repeatedMovieIsStoredOnce() {
+        MessageIndex index = new MessageIndex();
+        index.put(FIRST_MESSAGE, "tt1");
+        index.put(FIRST_MESSAGE, "tt1");
+        index.put(FIRST_MESSAGE, "tt2");
+        index.put(FIRST_MESSAGE, "tt2");
+
+        assertEquals(List.of("tt1", "tt2"), index.get(FIRST_MESSAGE));
+    }
+
+    @Test
+    void moviesAreSharedBetweenMessages() {
+        MessageIndex index = new MessageIndex();
+        index.put(FIRST_MESSAGE, "tt1");
+        index.put(FIRST_MESSAGE, "tt2");
+        index.put(FIRST_MESSAGE + 1, "tt2");
+
+        assertEquals(List.of("tt1", "tt2"), index.get(FIRST_MESSAGE));
+        assertEquals(List.of("tt2"), index.get(FIRST_MESSAGE + 1));
+    }
+
+    @Test
+    void unknownMessageIsEmpty() {
+        MessageIndex index = new MessageIndex();
+        index.put(FIRST_MESSAGE, "tt1");
+
+        assertEquals(List.of(), index.get(FIRST_MESSAGE + 1));
+    }
+
+    @Test
+    void lookupsSurviveResizing() {
+        MessageIndex index = new MessageIndex();
+        int messages = 10_000;
+        for (int i = 0; i < messages; i++) {
+            index.put(FIRST_MESSAGE + i, "tt" + (i % 100));
+            if (i % 10 == 0) {
+                index.put(FIRST_MESSAGE + i, "tt" + (100 + i % 7));
+            }
+        }
+
+        assertEquals(messages, index.size());
+        for (int i = 0; i < messages; i++) {
+            List<String> expected = i % 10 == 0 ? List.of("tt" + (i % 100), "tt" + (100 + i % 7)) : List.of("tt" + (i % 100));
+            assertEquals(expected, index.get(FIRST_MESSAGE + i));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SchemaMigrationsTest {
+
+    private static final int LATEST_VERSION = 7;
+
+    @TempDir
+    Path directory;
+
+    private Database database;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        database = new Database("jdbc:sqlite:" + directory.resolve("movies.db"));
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.close();
+    }
+
+    @Test
+    void upgradesBaselineDatabaseInPlace() throws SQLException {
+        // the schema and data the bot wrote before there were migrations
+        execute("""
+                CREATE TABLE movies (
+                    imdb_id TEXT PRIMARY KEY,
+                    title TEXT,
+                    year TEXT,
+                    has_been_watched BOOLEAN DEFAULT 0
+                )
+                """);
+        execute("""
+                CREATE TABLE messages (
+                    message_id TEXT PRIMARY KEY,
+                    imdb_id TEXT,
+                    FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
+                )
+                """);
+        execute("""
+                CREATE TABLE likes (
+                    imdb_id TEXT,
+                    user_id TEXT,
+                    PRIMARY KEY (imdb_id, user_id),
+                    FOREIGN KEY (imdb_id) REFERENCES movies(imdb_id)
+                )
+                """);
+        execute("INSERT INTO movies (imdb_id, title, year) VALUES ('tt0068646', 'The Godfather', '1972')");
+        execute("INSERT INTO movies (imdb_id, title, year, has_been_watched) VALUES ('tt0133093', 'The Matrix', '1999', 1)");
+        execute("INSERT INTO messages VALUES ('1120000000000000001', 'tt0068646')");
+        execute("INSERT INTO messages VALUES ('1120000000000000002', 'tt0133093')");
+        execute("INSERT INTO likes VALUES ('tt0068646', '230000000000000001')");
+        execute("INSERT INTO likes VALUES ('tt0068646', '230000000000000002')");
+
+        long beforeMigration = System.currentTimeMillis();
+        migrate();
+
+        assertEquals(LATEST_VERSION, queryLong("SELECT MAX(version) FROM schema_version"));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM movies"));
+        assertEquals(0, queryLong("SELECT has_been_watched FROM movies WHERE imdb_id = 'tt0068646'"));
+        assertEquals(1, queryLong("SELECT has_been_watched FROM movies WHERE imdb_id = 'tt0133093'"));
+
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM messages WHERE typeof(message_id) = 'integer'"));
+        assertEquals(1120000000000000001L, queryLong("SELECT message_id FROM messages WHERE imdb_id = 'tt0068646'"));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM likes WHERE typeof(user_id) = 'integer' AND liked_at = 0"));
+        assertEquals(230000000000000002L, queryLong("SELECT MAX(user_id) FROM likes"));
+
+        // existing movies are seeded into the metadata cache as fresh, in milliseconds
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM omdb_cache"));
+        assertTrue(queryLong("SELECT MIN(fetched_at) FROM omdb_cache") >= beforeMigration - 1000);
+
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM movie_titles WHERE movie_titles MATCH 'godf*'"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM movie_titles WHERE movie_titles MATCH '1999'"));
+    }
+
+    @Test
+    void migratingAgainChangesNothing() throws SQLException {
+        migrate();
+        execute("INSERT INTO movies (imdb_id, title, year) VALUES ('tt0068646', 'The Godfather', '1972')");
+        long appliedMigrations = queryLong("SELECT COUNT(*) FROM schema_version");
+
+        migrate();
+
+        assertEquals(LATEST_VERSION, appliedMigrations);
+        assertEquals(appliedMigrations, queryLong("SELECT COUNT(*) FROM schema_version"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM movie_titles WHERE movie_titles MATCH 'godfather'"));
+    }
+
+    @Test
+    void titleIndexStillMatchesMoviesAfterVacuum() throws SQLException {
+        migrate();
+        execute("INSERT INTO movies (imdb_id, title, year) VALUES ('tt0068646', 'The Godfather', '1972')");
+        execute("INSERT INTO movies (imdb_id, title, year) VALUES ('tt0133093', 'The Matrix', '1999')");
+        long id = queryLong("SELECT id FROM movies WHERE imdb_id = 'tt0133093'");
+        execute("DELETE FROM movies WHERE imdb_id = 'tt0068646'");
+
+        execute("VACUUM");
+
+        assertEquals(id, queryLong("SELECT id FROM movies WHERE imdb_id = 'tt0133093'"));
+        assertEquals(id, queryLong("SELECT rowid FROM movie_titles WHERE movie_titles MATCH 'matrix'"));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM movie_titles WHERE movie_titles MATCH 'godfather'"));
+    }
+
+    private void migrate() throws SQLException {
+        database.writeBlocking(connection -> {
+            SchemaMigrations.migrate(connection);
+            return null;
+        });
+    }
+
+    private void execute(String sql) throws SQLException {
+        database.writeBlocking(connection -> {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(sql);
+            }
+            return null;
+        });
+    }
+
+    private long queryLong(String sql) throws SQLException {
+        return database.writeBlocking(connection -> {
+            try (Statement stmt = connection.createStatement();
+                 ResultSet resultSet = stmt.executeQuery(sql)) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        });
+    }
+}
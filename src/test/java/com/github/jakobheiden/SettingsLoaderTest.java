@@ -0,0 +1,87 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SettingsLoaderTest {
+
+    private static final String REQUIRED = """
+            discordBotToken: token
+            omdbApiKey: key
+            ownerId: 200000000000000001
+            botId: 300000000000000001
+            """;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void singleChannelWithDefaults() throws IOException {
+        SettingsLoader settings = load(REQUIRED + "movieChannelId: 1100000000000000001\n");
+
+        assertEquals(List.of(new SettingsLoader.MovieChannelSettings(1100000000000000001L, 200000000000000001L)),
+                settings.getMovieChannels());
+        assertEquals(300000000000000001L, settings.getBotId());
+        assertFalse(settings.isUseSqlSuggestions());
+        assertEquals(9464, settings.getMetricsPort());
+        assertEquals(360, settings.getSnapshotIntervalMinutes());
+        assertEquals(8, settings.getSnapshotsToKeep());
+        assertEquals(Log.Level.INFO, settings.getLogLevel());
+    }
+
+    @Test
+    void channelOwnerDefaultsToGlobalOwner() throws IOException {
+        SettingsLoader settings = load(REQUIRED + """
+                useSqlSuggestions: true
+                logLevel: debug
+                movieChannels:
+                  - channelId: 1
+                  - channelId: 2
+                    ownerId: 5
+                """);
+
+        assertEquals(List.of(new SettingsLoader.MovieChannelSettings(1, 200000000000000001L),
+                new SettingsLoader.MovieChannelSettings(2, 5)), settings.getMovieChannels());
+        assertTrue(settings.isUseSqlSuggestions());
+        assertEquals(Log.Level.DEBUG, settings.getLogLevel());
+    }
+
+    @Test
+    void rejectsMissingOrInvalidSettings() {
+        assertInvalid("", "empty");
+        assertInvalid("omdbApiKey: key\nownerId: 2\nbotId: 3\nmovieChannelId: 1\n", "discordBotToken");
+        assertInvalid(REQUIRED.replace("discordBotToken: token", "discordBotToken: \" \""), "discordBotToken");
+        assertInvalid(REQUIRED, "movieChannelId");
+        assertInvalid(REQUIRED + "movieChannelId: one\n", "movieChannelId must be a number");
+        assertInvalid(REQUIRED + "movieChannels: 1\n", "must be a list");
+        assertInvalid(REQUIRED + "movieChannels: []\n", "at least one channel");
+        assertInvalid(REQUIRED + "movieChannels:\n  - ownerId: 5\n", "channelId");
+        assertInvalid(REQUIRED + "movieChannels:\n  - channelId: 1\n  - channelId: 1\n", "twice");
+        assertInvalid(REQUIRED + "movieChannelId: 1\nmetricsPort: 70000\n", "metricsPort");
+        assertInvalid(REQUIRED + "movieChannelId: 1\nsnapshotsToKeep: 0\n", "snapshotsToKeep");
+        assertInvalid(REQUIRED + "movieChannelId: 1\nsnapshotIntervalMinutes: -1\n", "snapshotIntervalMinutes");
+        assertInvalid(REQUIRED + "movieChannelId: 1\nlogLevel: loud\n", "logLevel");
+        assertInvalid(REQUIRED + "movieChannelId: 1\nuseSqlSuggestions: maybe\n", "useSqlSuggestions");
+    }
+
+    private void assertInvalid(String yaml, String expectedMessagePart) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> load(yaml));
+        assertTrue(e.getMessage().contains(expectedMessagePart), e.getMessage());
+    }
+
+    private SettingsLoader load(String yaml) throws IOException {
+        Path file = Files.createTempFile(directory, "settings", ".yaml");
+        Files.writeString(file, yaml);
+        return new SettingsLoader(file.toString());
+    }
+}
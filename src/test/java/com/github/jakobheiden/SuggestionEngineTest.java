@@ -0,0 +1,208 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The bitset engine must answer exactly like the SQL suggestion query. Both repositories get the same
+ * random likes, unlikes, new movies and watched changes, and are asked the same questions in between.
+ * Ranked scores are sums of powers, computed in a different order on each side, so they only have to
+ * agree within a rounding tolerance, and movies whose scores agree that closely may swap places.
+ */
+class SuggestionEngineTest {
+
+    private static final int MOVIES = 60;
+    private static final int USERS = 80;
+    private static final int OPERATIONS = 3000;
+    // relative; also covers like times of the two repositories that are a second apart
+    private static final double SCORE_TOLERANCE = 1e-5;
+
+    @TempDir
+    Path directory;
+
+    private MovieRepository engine;
+    private MovieRepository sql;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        engine = open("engine.db", false);
+        sql = open("sql.db", true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.close();
+        sql.close();
+    }
+
+    @Test
+    void engineMatchesSqlAfterRandomWrites() {
+        SplittableRandom random = new SplittableRandom(42);
+        List<String> movies = new ArrayList<>();
+        long messageId = 1_000_000_000_000_000_000L;
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int roll = random.nextInt(100);
+            if (movies.isEmpty() || (roll < 5 && movies.size() < MOVIES)) {
+                String imdbId = "tt" + (1_000_000 + movies.size());
+                Map<String, MovieMetadata> movie = Map.of(imdbId, new MovieMetadata("Movie " + movies.size(), "2000"));
+                long authorId = user(random);
+                engine.persistMovieMessage(messageId, authorId, movie).block();
+                sql.persistMovieMessage(messageId, authorId, movie).block();
+                messageId++;
+                movies.add(imdbId);
+            } else if (roll < 60) {
+                String imdbId = movies.get(random.nextInt(movies.size()));
+                long userId = user(random);
+                engine.persistLike(userId, imdbId);
+                sql.persistLike(userId, imdbId);
+            } else if (roll < 80) {
+                String imdbId = movies.get(random.nextInt(movies.size()));
+                long userId = user(random);
+                engine.deleteLike(imdbId, userId);
+                sql.deleteLike(imdbId, userId);
+            } else if (roll < 85) {
+                String imdbId = movies.get(random.nextInt(movies.size()));
+                boolean isWatched = random.nextBoolean();
+                (isWatched ? engine.markMovieAsSeen(imdbId) : engine.markMovieAsNotSeen(imdbId)).block();
+                (isWatched ? sql.markMovieAsSeen(imdbId) : sql.markMovieAsNotSeen(imdbId)).block();
+            } else {
+                List<Long> mentionedUserIds = mentionedUsers(random);
+                assertSameSuggestions(mentionedUserIds);
+                assertSameRankedSuggestions(mentionedUserIds);
+            }
+        }
+    }
+
+    @Test
+    void loadedEngineMatchesSql() throws Exception {
+        SplittableRandom random = new SplittableRandom(7);
+        for (int movie = 0; movie < MOVIES; movie++) {
+            String imdbId = "tt" + (1_000_000 + movie);
+            sql.persistMovieMessage(1_000_000_000_000_000_000L + movie, user(random),
+                    Map.of(imdbId, new MovieMetadata("Movie " + movie, "2000"))).block();
+            for (int like = random.nextInt(10); like > 0; like--) {
+                sql.persistLike(user(random), imdbId);
+            }
+        }
+        sql.close();
+        sql = open("sql.db", true);
+        engine.close();
+        engine = open("sql.db", false);
+
+        for (int question = 0; question < 200; question++) {
+            assertSameSuggestions(mentionedUsers(random));
+        }
+    }
+
+    @Test
+    void loadedEngineRanksLikeSql() throws Exception {
+        SplittableRandom random = new SplittableRandom(11);
+        for (int movie = 0; movie < MOVIES; movie++) {
+            String imdbId = "tt" + (1_000_000 + movie);
+            sql.persistMovieMessage(1_000_000_000_000_000_000L + movie, user(random),
+                    Map.of(imdbId, new MovieMetadata("Movie " + movie, "2000"))).block();
+            for (int like = random.nextInt(10); like > 0; like--) {
+                sql.persistLike(user(random), imdbId);
+            }
+        }
+        sql.close();
+        // like times from never, for likes from before there were times, to a few hours ago
+        long now = Instant.now().getEpochSecond();
+        try (Database database = new Database("jdbc:sqlite:" + directory.resolve("sql.db"))) {
+            database.writeBlocking(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.executeUpdate("UPDATE likes SET liked_at = CASE WHEN abs(random()) %% 10 = 0 THEN 0 ELSE %d - abs(random()) %% %d END"
+                            .formatted(now, Duration.ofDays(365).toSeconds()));
+                }
+                return null;
+            });
+        }
+        sql = open("sql.db", true);
+        engine.close();
+        engine = open("sql.db", false);
+
+        for (int question = 0; question < 200; question++) {
+            assertSameRankedSuggestions(mentionedUsers(random));
+        }
+    }
+
+    @Test
+    void sqliteHasMathFunctions() throws Exception {
+        // the ranked SQL query needs pow(), which SQLite only has when built with SQLITE_ENABLE_MATH_FUNCTIONS
+        try (Database database = new Database("jdbc:sqlite:" + directory.resolve("math.db"))) {
+            double result = database.readBlocking(connection -> {
+                try (Statement stmt = connection.createStatement();
+                     ResultSet resultSet = stmt.executeQuery("SELECT pow(0.5, 3)")) {
+                    resultSet.next();
+                    return resultSet.getDouble(1);
+                }
+            });
+            assertEquals(0.125, result);
+        }
+    }
+
+    private void assertSameSuggestions(List<Long> mentionedUserIds) {
+        assertEquals(sql.fetchMovieSuggestions(mentionedUserIds).block(), engine.fetchMovieSuggestions(mentionedUserIds).block(),
+                () -> "suggestions for " + mentionedUserIds);
+    }
+
+    private void assertSameRankedSuggestions(List<Long> mentionedUserIds) {
+        List<MovieRepository.RankedSuggestion> expected = sql.fetchRankedSuggestions(mentionedUserIds).block();
+        List<MovieRepository.RankedSuggestion> actual = engine.fetchRankedSuggestions(mentionedUserIds).block();
+        String context = "ranked suggestions for " + mentionedUserIds + ": expected " + expected + ", got " + actual;
+        assertEquals(expected.size(), actual.size(), context);
+        Map<String, MovieRepository.RankedSuggestion> expectedById = new HashMap<>();
+        expected.forEach(suggestion -> expectedById.put(suggestion.imdbId(), suggestion));
+        for (int i = 0; i < actual.size(); i++) {
+            MovieRepository.RankedSuggestion suggestion = actual.get(i);
+            assertScoreEquals(expected.get(i).score(), suggestion.score(), context);
+            MovieRepository.RankedSuggestion match = expectedById.get(suggestion.imdbId());
+            if (match == null) {
+                // tied with the last movie SQL kept, which it may have picked instead
+                assertScoreEquals(expected.getLast().score(), suggestion.score(), context);
+                continue;
+            }
+            assertEquals(match.taggedLikeCount(), suggestion.taggedLikeCount(), context);
+            assertEquals(match.allLikeCount(), suggestion.allLikeCount(), context);
+            assertEquals(match.title(), suggestion.title(), context);
+            assertScoreEquals(match.score(), suggestion.score(), context);
+        }
+    }
+
+    private static void assertScoreEquals(double expected, double actual, String context) {
+        assertEquals(expected, actual, SCORE_TOLERANCE * Math.max(1, Math.abs(expected)), context);
+    }
+
+    private MovieRepository open(String fileName, boolean useSqlSuggestions) throws Exception {
+        MovieRepository repository = new MovieRepository(directory.resolve(fileName).toString(), useSqlSuggestions);
+        repository.initSchema().block();
+        return repository;
+    }
+
+    private static List<Long> mentionedUsers(SplittableRandom random) {
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 1 + random.nextInt(4); i > 0; i--) {
+            userIds.add(user(random));
+        }
+        return userIds;
+    }
+
+    private static long user(SplittableRandom random) {
+        return 100_000_000_000_000_000L + random.nextInt(USERS);
+    }
+}
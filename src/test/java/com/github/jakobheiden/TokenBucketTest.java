@@ -0,0 +1,39 @@
+package com.github.jakobheiden;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    @Test
+    void allowsBurstThenReportsWait() {
+        long nanosPerToken = TimeUnit.HOURS.toNanos(1);
+        TokenBucket bucket = new TokenBucket(3, nanosPerToken);
+
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+
+        long wait = bucket.tryAcquire();
+        assertTrue(wait > 0 && wait <= nanosPerToken, "wait " + wait);
+    }
+
+    @Test
+    void refillsOverTimeUpToCapacity() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(2, TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+
+        // far more than two tokens' worth, but the bucket holds only two
+        Thread.sleep(100);
+
+        assertEquals(0, bucket.tryAcquire());
+        assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+}